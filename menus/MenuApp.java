@@ -1,4 +1,5 @@
 ///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 21+
 //DEPS info.picocli:picocli:4.7.5
 //DEPS info.picocli:picocli-shell-jline3:4.7.5
 //DEPS org.jline:jline:3.26.1
@@ -13,10 +14,51 @@ import org.jline.reader.LineReaderBuilder;
 import org.jline.terminal.*;
 
 import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.awt.Component;
+import java.awt.Container;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 import java.security.MessageDigest;
@@ -25,15 +67,29 @@ import java.util.Base64;
 @Command(name = "menu", mixinStandardHelpOptions = true, description = "Dynamic CLI/GUI Menu App with secret commands")
 public class MenuApp implements Runnable {
 
-	static CommandLine cli;
+	static volatile CommandLine cli;
 	static LineReader reader;
 	static Terminal terminal;
 	static JFrame frame;
 	static JMenuBar bar;
+	static MenuConfig cliConfig;
+	static MenuConfig guiConfig;
+
+	/**
+	 * Guards the live command tree, which reloads edit in place. Parsing and
+	 * completion hold the read lock; commands run after it is released.
+	 */
+	static final ReentrantReadWriteLock TREE_LOCK = new ReentrantReadWriteLock();
+	static final AtomicReference<Completer> COMPLETER = new AtomicReference<>();
+	static final Set<String> BUILT_INS = Set.of("log", "help-all", "exit",
+			"jobs", "fg", "wait", "kill", "output");
 	static boolean guiMode = false;
+	static volatile boolean runInBackground = false;
 
 	public static final Path LOG_FILE = Paths.get("menuapp.log");
 
+	static final AsyncLog LOG = new AsyncLog(LOG_FILE);
+
 	public static void main(String[] args) throws Exception {
 
 		for (String a : args)
@@ -47,7 +103,12 @@ public class MenuApp implements Runnable {
 	}
 
 	public void run() {
-		cli.usage(System.out);
+		TREE_LOCK.readLock().lock();
+		try {
+			cli.usage(System.out);
+		} finally {
+			TREE_LOCK.readLock().unlock();
+		}
 	}
 
 	// ================= CLI =================
@@ -56,7 +117,7 @@ public class MenuApp implements Runnable {
 		rebuildCli();
 
 		if (args.length > 0 && !"--gui".equalsIgnoreCase(args[0]))
-			cli.execute(args);
+			execute(args);
 
 		MenuLoader.watch("menus.json", MenuApp::rebuildCli);
 		repl();
@@ -64,36 +125,104 @@ public class MenuApp implements Runnable {
 
 	static void rebuildCli() {
 		try {
-			MenuConfig cfg = MenuLoader.load("menus.json");
-
-			CommandSpec root = CommandSpec.forAnnotatedObject(new MenuApp());
-
-			root.addSubcommand("log",
-					CommandSpec.forAnnotatedObject(new LogCmd()));
-			root.addSubcommand("help-all",
-					CommandSpec.forAnnotatedObject(new HelpAllCmd()));
-			root.addSubcommand("exit",
-					CommandSpec.forAnnotatedObject(new ExitCmd()));
+			rebuildCli(MenuLoader.load("menus.json"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
 
-			for (MenuNode node : cfg.menus)
-				root.addSubcommand(
-						node.name.toLowerCase(),
-						buildNode(node));
+	/**
+	 * Applies {@code cfg} to the live tree. After the first build only the
+	 * subcommands whose entries changed are removed and re-added, so the cost
+	 * follows the size of the edit rather than of menus.json. The config is
+	 * validated up front so a bad one never leaves a half-applied tree.
+	 */
+	static void rebuildCli(MenuConfig cfg) {
+		validate(cfg.menus, BUILT_INS);
+		if (cli == null) {
+			buildCli(cfg);
+			return;
+		}
+		TREE_LOCK.writeLock().lock();
+		try {
+			int changed = syncSpec(cli.getCommandSpec(), cliConfig.menus, cfg.menus);
+			cliConfig = cfg;
+			log("Menus updated, " + changed + " command(s) changed");
+		} finally {
+			TREE_LOCK.writeLock().unlock();
+		}
+	}
 
-			cli = new CommandLine(root);
+	static void buildCli(MenuConfig cfg) {
+		CommandSpec root = CommandSpec.forAnnotatedObject(new MenuApp());
+
+		root.addSubcommand("log",
+				CommandSpec.forAnnotatedObject(new LogCmd()));
+		root.addSubcommand("help-all",
+				CommandSpec.forAnnotatedObject(new HelpAllCmd()));
+		root.addSubcommand("exit",
+				CommandSpec.forAnnotatedObject(new ExitCmd()));
+		root.addSubcommand("jobs",
+				CommandSpec.forAnnotatedObject(new JobsCmd()));
+		root.addSubcommand("fg",
+				CommandSpec.forAnnotatedObject(new FgCmd()));
+		root.addSubcommand("wait",
+				CommandSpec.forAnnotatedObject(new WaitCmd()));
+		root.addSubcommand("kill",
+				CommandSpec.forAnnotatedObject(new KillCmd()));
+		root.addSubcommand("output",
+				CommandSpec.forAnnotatedObject(new OutputCmd()));
+
+		for (MenuNode node : cfg.menus)
+			root.addSubcommand(
+					node.name.toLowerCase(),
+					buildNode(node));
+
+		CommandLine built = new CommandLine(root);
+		built.setExecutionStrategy(MenuApp::runUnlocked);
+		TREE_LOCK.writeLock().lock();
+		try {
+			cliConfig = cfg;
+			cli = built;
+			COMPLETER.set(new PicocliJLineCompleter(root));
+		} finally {
+			TREE_LOCK.writeLock().unlock();
+		}
+	}
 
-		} catch (Exception e) {
-			e.printStackTrace();
+	/** Parses under the read lock; the lock is dropped before the command itself runs. */
+	static int execute(String... args) {
+		TREE_LOCK.readLock().lock();
+		try {
+			return cli.execute(args);
+		} finally {
+			if (TREE_LOCK.getReadHoldCount() > 0)
+				TREE_LOCK.readLock().unlock();
 		}
 	}
 
+	/** Usage and version help walk the tree, so they are printed before the lock is dropped. */
+	static int runUnlocked(ParseResult parsed) {
+		Integer helpExitCode = CommandLine.executeHelpRequest(parsed);
+		if (TREE_LOCK.getReadHoldCount() > 0)
+			TREE_LOCK.readLock().unlock();
+		return helpExitCode != null ? helpExitCode : new RunLast().execute(parsed);
+	}
+
 	static void repl() throws Exception {
 
 		terminal = TerminalBuilder.builder().system(true).build();
 
 		reader = LineReaderBuilder.builder()
 			.terminal(terminal)
-			.completer(new PicocliJLineCompleter(cli.getCommandSpec()))
+			.completer((r, l, candidates) -> {
+				TREE_LOCK.readLock().lock();
+				try {
+					COMPLETER.get().complete(r, l, candidates);
+				} finally {
+					TREE_LOCK.readLock().unlock();
+				}
+			})
 			.build();
 
 		while (true) {
@@ -109,7 +238,20 @@ public class MenuApp implements Runnable {
 			if (line == null || line.trim().isEmpty())
 				continue;
 
-			cli.execute(line.split("\\s+"));
+			// a trailing & runs the menu command as a background job
+			line = line.trim();
+			boolean background = line.endsWith("&");
+			if (background)
+				line = line.substring(0, line.length() - 1).trim();
+			if (line.isEmpty())
+				continue;
+
+			runInBackground = background;
+			try {
+				execute(line.split("\\s+"));
+			} finally {
+				runInBackground = false;
+			}
 		}
 	}
 
@@ -122,7 +264,9 @@ public class MenuApp implements Runnable {
 		frame.setJMenuBar(bar);
 
 		rebuildGui();
-		MenuLoader.watch("menus.json", MenuApp::rebuildGui);
+		MenuLoader.watch("menus.json", cfg -> onEdt(() -> rebuildGui(cfg)));
+
+		frame.add(buildJobsPanel());
 
 		frame.setSize(600, 400);
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -131,19 +275,49 @@ public class MenuApp implements Runnable {
 
 	static void rebuildGui() {
 		try {
-			bar.removeAll();
-			MenuConfig cfg = MenuLoader.load("menus.json");
+			rebuildGui(MenuLoader.load("menus.json"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
 
-			for (MenuNode node : cfg.menus)
-				bar.add(buildMenu(node));
+	/**
+	 * Runs {@code task} on the EDT and waits for it, so the reload thread only
+	 * counts a config as applied once the menus really show it. A failure on
+	 * the EDT is rethrown here.
+	 */
+	static void onEdt(Runnable task) {
+		try {
+			SwingUtilities.invokeAndWait(task);
+		} catch (java.lang.reflect.InvocationTargetException e) {
+			throw e.getCause() instanceof RuntimeException cause ? cause : new IllegalStateException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while rebuilding menus", e);
+		}
+	}
 
-			bar.add(buildSystemMenu());
+	/** EDT only. After the first build, only changed entries are rebuilt. */
+	static void rebuildGui(MenuConfig cfg) {
+		if (guiConfig != null) {
+			syncMenus(bar, guiConfig.menus, cfg.menus, true);
+			guiConfig = cfg;
 			bar.revalidate();
 			bar.repaint();
-
-		} catch (Exception e) {
-			e.printStackTrace();
+			return;
 		}
+
+		List<JMenu> menus = new ArrayList<>();
+		for (MenuNode node : cfg.menus)
+			menus.add(buildMenu(node));
+		menus.add(buildSystemMenu());
+
+		bar.removeAll();
+		for (JMenu menu : menus)
+			bar.add(menu);
+		guiConfig = cfg;
+		bar.revalidate();
+		bar.repaint();
 	}
 
 	static JMenu buildMenu(MenuNode node) {
@@ -168,27 +342,226 @@ public class MenuApp implements Runnable {
 		return item;
 	}
 
+	/**
+	 * Brings the first {@code old.size()} components of {@code parent}, which
+	 * were built from {@code old}, in line with {@code now}. Unchanged entries
+	 * keep their component (submenus are synced recursively), changed or new
+	 * ones are built, and anything left over is removed. Components after
+	 * that range, like the System menu, are left alone.
+	 */
+	static void syncMenus(Container parent, List<MenuNode> old, List<MenuNode> now, boolean top) {
+		Map<String, ArrayDeque<Integer>> oldByName = new LinkedHashMap<>();
+		for (int i = 0; i < old.size(); i++)
+			oldByName.computeIfAbsent(old.get(i).name, k -> new ArrayDeque<>()).add(i);
+
+		List<Component> desired = new ArrayList<>(now.size());
+		for (MenuNode node : now) {
+			ArrayDeque<Integer> candidates = oldByName.get(node.name);
+			Integer at = candidates == null ? null : candidates.poll();
+			MenuNode was = at == null ? null : old.get(at);
+			if (was != null && sameEntry(was, node) && (was.children == null) == (node.children == null)) {
+				Component reused = parent.getComponent(at);
+				if (reused instanceof JMenu submenu)
+					syncMenus(submenu.getPopupMenu(), children(was), children(node), false);
+				desired.add(reused);
+			} else {
+				desired.add(top || node.children != null ? buildMenu(node) : buildItem(node));
+			}
+		}
+
+		Set<Component> keep = Collections.newSetFromMap(new IdentityHashMap<>());
+		keep.addAll(desired);
+		for (int i = old.size() - 1; i >= 0; i--)
+			if (!keep.contains(parent.getComponent(i)))
+				parent.remove(i);
+		for (int i = 0; i < desired.size(); i++)
+			if (parent.getComponentCount() <= i || parent.getComponent(i) != desired.get(i))
+				parent.add(desired.get(i), i);
+	}
+
 	static JMenu buildSystemMenu() {
 
 		JMenu menu = new JMenu("System");
 
 		JMenuItem view = new JMenuItem("View Log");
-		view.addActionListener(e -> {
+		view.addActionListener(e -> showLog());
+
+		menu.add(view);
+		return menu;
+	}
+
+	/** Jobs started from the menus, refreshed twice a second. */
+	static JPanel buildJobsPanel() {
+		JobsTableModel model = new JobsTableModel();
+		JTable table = new JTable(model);
+		table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		table.getColumnModel().getColumn(0).setMaxWidth(50);
+		table.getColumnModel().getColumn(1).setMaxWidth(80);
+		table.getColumnModel().getColumn(2).setMaxWidth(50);
+		table.getColumnModel().getColumn(3).setMaxWidth(80);
+
+		JButton output = new JButton("Output");
+		JButton kill = new JButton("Kill");
+		output.addActionListener(e -> {
+			Job job = model.jobAt(table.getSelectedRow());
+			if (job != null)
+				showOutput(job);
+		});
+		kill.addActionListener(e -> {
+			Job job = model.jobAt(table.getSelectedRow());
+			if (job != null)
+				job.kill();
+		});
+		table.addMouseListener(new java.awt.event.MouseAdapter() {
+			@Override
+			public void mouseClicked(java.awt.event.MouseEvent e) {
+				Job job = model.jobAt(table.rowAtPoint(e.getPoint()));
+				if (e.getClickCount() == 2 && job != null)
+					showOutput(job);
+			}
+		});
+
+		new Timer(500, e -> model.refresh(table)).start();
+
+		JPanel buttons = new JPanel();
+		buttons.add(output);
+		buttons.add(kill);
+		JPanel panel = new JPanel(new java.awt.BorderLayout());
+		panel.add(new JScrollPane(table), java.awt.BorderLayout.CENTER);
+		panel.add(buttons, java.awt.BorderLayout.SOUTH);
+		return panel;
+	}
+
+	static void showOutput(Job job) {
+		JTextArea area = new JTextArea(job.outputText(), 25, 100);
+		area.setEditable(false);
+		JOptionPane.showMessageDialog(
+				frame,
+				new JScrollPane(area),
+				"Job " + job.id + ": " + job.label,
+				JOptionPane.PLAIN_MESSAGE);
+	}
+
+	static class JobsTableModel extends AbstractTableModel {
+
+		private static final long serialVersionUID = 1L;
+
+		static final String[] COLUMNS = { "Id", "State", "Exit", "Time", "Command" };
+
+		private transient List<Job> rows = List.of();
+
+		/** Keeps the selected job selected across refreshes. */
+		void refresh(JTable table) {
+			List<Job> now = Jobs.list();
+			boolean sameRows = now.equals(rows);
+			Job selected = jobAt(table.getSelectedRow());
+			rows = now;
+			if (sameRows && !now.isEmpty()) {
+				fireTableRowsUpdated(0, now.size() - 1);
+				return;
+			}
+			fireTableDataChanged();
+			int index = selected == null ? -1 : now.indexOf(selected);
+			if (index >= 0)
+				table.setRowSelectionInterval(index, index);
+		}
+
+		Job jobAt(int row) {
+			return row >= 0 && row < rows.size() ? rows.get(row) : null;
+		}
+
+		public int getRowCount() {
+			return rows.size();
+		}
+
+		public int getColumnCount() {
+			return COLUMNS.length;
+		}
+
+		@Override
+		public String getColumnName(int column) {
+			return COLUMNS[column];
+		}
+
+		public Object getValueAt(int row, int column) {
+			Job job = rows.get(row);
+			return switch (column) {
+				case 0 -> job.id;
+				case 1 -> job.state;
+				case 2 -> job.exitCode == null ? "" : job.exitCode;
+				case 3 -> Job.format(job.elapsed());
+				default -> job.label;
+			};
+		}
+	}
+
+	static final int LOG_PAGE = 500;
+
+	/**
+	 * Shows the log one page at a time, newest at the bottom. Older pages are
+	 * pulled from a {@link ReverseLineReader} only when asked for, so opening
+	 * the dialog costs the same for a 1 KB and a 1 GB log.
+	 */
+	static void showLog() {
+		LOG.flush();
+		ReverseLineReader lines = LOG.reverseReader();
+		JTextArea area = new JTextArea(30, 100);
+		area.setEditable(false);
+		JButton older = new JButton("Load older");
+		JScrollPane scroll = new JScrollPane(area);
+
+		Runnable loadPage = () -> {
+			List<String> page = new ArrayList<>();
 			try {
-				JTextArea area = new JTextArea(
-						Files.readString(LOG_FILE));
-				JOptionPane.showMessageDialog(
-						frame,
-						new JScrollPane(area));
-			} catch (Exception ex) {
-				JOptionPane.showMessageDialog(
-						frame,
-						"No log yet.");
+				String line;
+				while (page.size() < LOG_PAGE && (line = lines.readLine()) != null)
+					page.add(line);
+			} catch (IOException ex) {
+				page.add("(" + ex.getMessage() + ")");
+			}
+			if (page.size() < LOG_PAGE)
+				older.setEnabled(false);
+			if (page.isEmpty())
+				return;
+			Collections.reverse(page);
+			int oldHeight = area.getPreferredSize().height;
+			int oldPos = scroll.getVerticalScrollBar().getValue();
+			area.insert(String.join("\n", page) + (area.getDocument().getLength() > 0 ? "\n" : ""), 0);
+			// keep what the user was looking at in place
+			SwingUtilities.invokeLater(() -> scroll.getVerticalScrollBar()
+					.setValue(oldPos + area.getPreferredSize().height - oldHeight));
+		};
+		older.addActionListener(ev -> loadPage.run());
+		loadPage.run();
+		if (area.getDocument().getLength() == 0) {
+			closeQuietly(lines);
+			JOptionPane.showMessageDialog(
+					frame,
+					"No log yet.");
+			return;
+		}
+		area.setCaretPosition(area.getDocument().getLength());
+
+		JDialog dialog = new JDialog(frame, "Log", true);
+		dialog.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+		dialog.addWindowListener(new java.awt.event.WindowAdapter() {
+			@Override
+			public void windowClosed(java.awt.event.WindowEvent ev) {
+				closeQuietly(lines);
 			}
 		});
+		dialog.add(older, java.awt.BorderLayout.NORTH);
+		dialog.add(scroll, java.awt.BorderLayout.CENTER);
+		dialog.pack();
+		dialog.setLocationRelativeTo(frame);
+		dialog.setVisible(true);
+	}
 
-		menu.add(view);
-		return menu;
+	static void closeQuietly(Closeable c) {
+		try {
+			c.close();
+		} catch (IOException ignored) {
+		}
 	}
 
 	// ================= DYNAMIC BUILD =================
@@ -212,10 +585,7 @@ public class MenuApp implements Runnable {
 
 	static CommandSpec buildNode(MenuNode node) {
 
-		boolean isLeaf = node.command != null &&
-				(node.children == null || node.children.isEmpty());
-
-		if (isLeaf) {
+		if (isLeaf(node)) {
 			DynamicLeaf leaf = new DynamicLeaf(node);
 			CommandSpec spec = CommandSpec.forAnnotatedObject(leaf);
 			spec.name(node.name.toLowerCase());
@@ -236,12 +606,84 @@ public class MenuApp implements Runnable {
 		return spec;
 	}
 
+	static boolean isLeaf(MenuNode node) {
+		return node.command != null &&
+				(node.children == null || node.children.isEmpty());
+	}
+
+	static List<MenuNode> children(MenuNode node) {
+		return node.children == null ? List.of() : node.children;
+	}
+
+	/** Same entry apart from its children. */
+	static boolean sameEntry(MenuNode a, MenuNode b) {
+		return Objects.equals(a.name, b.name)
+				&& Objects.equals(a.description, b.description)
+				&& Objects.equals(a.shortcut, b.shortcut)
+				&& Objects.equals(a.command, b.command)
+				&& a.secret == b.secret
+				&& isLeaf(a) == isLeaf(b);
+	}
+
+	/** Rejects configs that picocli would refuse halfway through an update. */
+	static void validate(List<MenuNode> nodes, Set<String> taken) {
+		Set<String> seen = new HashSet<>(taken);
+		for (MenuNode node : nodes) {
+			if (node.name == null || node.name.isBlank())
+				throw new IllegalArgumentException("menu entry without a name");
+			if (!seen.add(node.name.toLowerCase()))
+				throw new IllegalArgumentException("duplicate menu entry: " + node.name);
+			validate(children(node), Set.of());
+		}
+	}
+
+	/**
+	 * Updates the subcommands of {@code parent} from {@code old} to
+	 * {@code now} and returns how many were added, removed or replaced.
+	 */
+	static int syncSpec(CommandSpec parent, List<MenuNode> old, List<MenuNode> now) {
+		Map<String, MenuNode> before = new LinkedHashMap<>();
+		for (MenuNode node : old)
+			before.put(node.name.toLowerCase(), node);
+
+		int changed = 0;
+		Set<String> kept = new HashSet<>();
+		for (MenuNode node : now)
+			kept.add(node.name.toLowerCase());
+		for (String name : before.keySet())
+			if (!kept.contains(name)) {
+				parent.removeSubcommand(name);
+				changed++;
+			}
+
+		for (MenuNode node : now) {
+			String name = node.name.toLowerCase();
+			MenuNode was = before.get(name);
+			if (was != null && sameEntry(was, node)) {
+				if (!isLeaf(node))
+					changed += syncSpec(parent.subcommands().get(name).getCommandSpec(),
+							children(was), children(node));
+				continue;
+			}
+			if (was != null)
+				parent.removeSubcommand(name);
+			parent.addSubcommand(name, buildNode(node));
+			changed++;
+		}
+		return changed;
+	}
+
 	// ================= HELP =================
 
 	@Command(name = "help-all")
 	static class HelpAllCmd implements Runnable {
 		public void run() {
-			printFilteredHelp(cli.getCommandSpec(), 0);
+			TREE_LOCK.readLock().lock();
+			try {
+				printFilteredHelp(cli.getCommandSpec(), 0);
+			} finally {
+				TREE_LOCK.readLock().unlock();
+			}
 		}
 	}
 
@@ -267,18 +709,187 @@ public class MenuApp implements Runnable {
 
 	// ================= BUILT-IN =================
 
-	@Command(name = "log")
+	@Command(name = "log", description = "Show the newest log lines")
 	static class LogCmd implements Runnable {
+
+		@Spec
+		CommandSpec spec;
+
+		int tail;
+
+		/** Validated while parsing, so the usage message is printed under the tree lock. */
+		@Option(names = "--tail", paramLabel = "N", defaultValue = "100",
+				description = "Number of lines to show (default: ${DEFAULT-VALUE})")
+		void setTail(int tail) {
+			if (tail < 1)
+				throw new ParameterException(spec.commandLine(), "--tail must be at least 1, got " + tail);
+			this.tail = tail;
+		}
+
+		@Option(names = "--grep", paramLabel = "REGEX",
+				description = "Only lines matching REGEX")
+		Pattern grep;
+
+		@Option(names = "--since", paramLabel = "TIME",
+				description = "Only lines newer than TIME: 2024-05-01, 2024-05-01T12:00 or an age like 30m, 2h, 7d")
+		String since;
+
 		public void run() {
+			LocalDateTime from;
 			try {
-				System.out.println(
-						Files.readString(LOG_FILE));
-			} catch (Exception e) {
-				System.out.println("No log yet.");
+				from = since == null ? null : parseSince(since);
+			} catch (DateTimeParseException | IllegalArgumentException e) {
+				System.out.println("Bad --since: " + since);
+				return;
+			}
+
+			List<String> lines;
+			if (grep == null && from == null && tail <= LOG.recentCount()) {
+				lines = LOG.recent();
+				lines = lines.subList(Math.max(0, lines.size() - tail), lines.size());
+			} else {
+				try {
+					lines = LOG.search(tail, grep, from);
+				} catch (IOException e) {
+					System.out.println("Cannot read log: " + e.getMessage());
+					return;
+				}
+			}
+			if (lines.isEmpty())
+				System.out.println(grep == null && from == null ? "No log yet." : "No matching log lines.");
+			for (String line : lines)
+				System.out.println(line);
+		}
+
+		static LocalDateTime parseSince(String value) {
+			char unit = value.charAt(value.length() - 1);
+			if (Character.isLetter(unit) && value.chars().limit(value.length() - 1).allMatch(Character::isDigit)) {
+				long amount = Long.parseLong(value.substring(0, value.length() - 1));
+				Duration age = switch (Character.toLowerCase(unit)) {
+					case 's' -> Duration.ofSeconds(amount);
+					case 'm' -> Duration.ofMinutes(amount);
+					case 'h' -> Duration.ofHours(amount);
+					case 'd' -> Duration.ofDays(amount);
+					default -> throw new IllegalArgumentException(value);
+				};
+				return LocalDateTime.now().minus(age);
+			}
+			return value.contains("T")
+					? LocalDateTime.parse(value)
+					: LocalDate.parse(value).atStartOfDay();
+		}
+	}
+
+	@Command(name = "jobs", description = "List background and recent jobs")
+	static class JobsCmd implements Runnable {
+		public void run() {
+			List<Job> jobs = Jobs.list();
+			if (jobs.isEmpty())
+				System.out.println("No jobs.");
+			for (Job job : jobs)
+				System.out.printf("[%d] %-8s %4s %8s  %s%n",
+						job.id,
+						job.state,
+						job.exitCode == null ? "" : job.exitCode,
+						Job.format(job.elapsed()),
+						job.label);
+		}
+	}
+
+	@Command(name = "fg", description = "Follow a job's output until it ends (default: newest running job)")
+	static class FgCmd implements Runnable {
+
+		@Parameters(arity = "0..1", paramLabel = "ID")
+		Integer id;
+
+		public void run() {
+			Job job = id != null ? Jobs.get(id) : Jobs.newestRunning();
+			if (job == null) {
+				System.out.println(id == null ? "No running jobs." : "No job " + id);
+				return;
+			}
+			// the job's output is written before it finishes, so once it is done the feed only shrinks
+			BlockingQueue<byte[]> feed = job.output.follow();
+			try {
+				while (true) {
+					byte[] bytes = feed.poll(100, TimeUnit.MILLISECONDS);
+					if (bytes != null) {
+						System.out.write(bytes, 0, bytes.length);
+						System.out.flush();
+					} else if (job.done.isDone() && feed.isEmpty()) {
+						break;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				job.output.unfollow();
+			}
+			System.out.println("[" + job.id + "] " + job.state
+					+ (job.exitCode == null ? "" : " " + job.exitCode));
+		}
+	}
+
+	@Command(name = "wait", description = "Wait for jobs to end (default: all running jobs)")
+	static class WaitCmd implements Runnable {
+
+		@Parameters(arity = "0..*", paramLabel = "ID")
+		List<Integer> ids;
+
+		public void run() {
+			List<Job> jobs = new ArrayList<>();
+			if (ids == null) {
+				for (Job running : Jobs.list())
+					if (running.state == JobState.RUNNING)
+						jobs.add(running);
+			} else {
+				for (int id : ids) {
+					Job found = Jobs.get(id);
+					if (found == null)
+						System.out.println("No job " + id);
+					else
+						jobs.add(found);
+				}
+			}
+			for (Job job : jobs) {
+				job.done.join();
+				System.out.println("[" + job.id + "] " + job.state
+						+ (job.exitCode == null ? "" : " " + job.exitCode)
+						+ "  " + job.label);
 			}
 		}
 	}
 
+	@Command(name = "kill", description = "Stop a running job")
+	static class KillCmd implements Runnable {
+
+		@Parameters(paramLabel = "ID")
+		int id;
+
+		public void run() {
+			Job job = Jobs.get(id);
+			if (job == null)
+				System.out.println("No job " + id);
+			else if (!job.kill())
+				System.out.println("Job " + id + " is not running");
+		}
+	}
+
+	@Command(name = "output", description = "Print what a job has written so far")
+	static class OutputCmd implements Runnable {
+
+		@Parameters(paramLabel = "ID")
+		int id;
+
+		public void run() {
+			Job job = Jobs.get(id);
+			if (job == null)
+				System.out.println("No job " + id);
+			else
+				System.out.print(job.outputText());
+		}
+	}
+
 	@Command(name = "exit")
 	static class ExitCmd implements Runnable {
 		public void run() {
@@ -383,17 +994,14 @@ public class MenuApp implements Runnable {
 					log("EXEC: " + cmd);
 				}
 
-				ProcessBuilder pb;
-
-				if (System.getProperty("os.name")
-					.toLowerCase()
-					.contains("win"))
-					pb = new ProcessBuilder("cmd", "/c", cmd);
-				else
-					pb = new ProcessBuilder("sh", "-c", cmd);
-
-				pb.inheritIO();
-				pb.start().waitFor();
+				// the GUI and "cmd &" return at once; a plain REPL command keeps the terminal
+				if (guiMode || runInBackground) {
+					Job job = Jobs.start(node.name, cmd, node.secret, true);
+					if (!guiMode)
+						System.out.println("[" + job.id + "] " + job.label);
+				} else {
+					Jobs.start(node.name, cmd, node.secret, false).done.join();
+				}
 
 			} catch (Exception e) {
 				log("ERROR: " + e.getMessage());
@@ -438,14 +1046,577 @@ public class MenuApp implements Runnable {
 		}
 	}
 
-	static synchronized void log(String msg) {
-		try {
-			Files.writeString(LOG_FILE,
-					"[" + LocalDateTime.now() + "] "
-							+ msg + "\n",
+	// ================= JOBS =================
+
+	enum JobState { RUNNING, DONE, FAILED, KILLED }
+
+	/**
+	 * A menu command running in its own process, driven by a virtual thread.
+	 * Captured jobs get no stdin and have stdout and stderr merged into a
+	 * bounded {@link OutputBuffer}; uncaptured ones (foreground REPL commands)
+	 * share the terminal as before. Secret jobs never expose their command.
+	 */
+	static class Job {
+		final int id;
+		final String label;
+		final boolean captured;
+		final OutputBuffer output = new OutputBuffer(Jobs.OUTPUT_LIMIT);
+		final CompletableFuture<Integer> done = new CompletableFuture<>();
+		final Instant started = Instant.now();
+		volatile Instant ended;
+		volatile JobState state = JobState.RUNNING;
+		volatile Integer exitCode;
+		volatile Process process;
+		volatile boolean killRequested;
+
+		Job(int id, String label, boolean captured) {
+			this.id = id;
+			this.label = label;
+			this.captured = captured;
+		}
+
+		Duration elapsed() {
+			return Duration.between(started, ended != null ? ended : Instant.now());
+		}
+
+		String outputText() {
+			if (!captured)
+				return "(output went to the terminal)\n";
+			long dropped = output.dropped();
+			String text = new String(output.snapshot(), StandardCharsets.UTF_8);
+			return dropped > 0 ? "(" + dropped + " earlier bytes dropped)\n" + text : text;
+		}
+
+		/** Stops the process and everything it started. False if it had already ended. */
+		boolean kill() {
+			if (state != JobState.RUNNING)
+				return false;
+			killRequested = true;
+			Process p = process;
+			if (p != null)
+				destroy(p);
+			return true;
+		}
+
+		static void destroy(Process p) {
+			p.descendants().forEach(ProcessHandle::destroy);
+			p.destroy();
+			p.onExit().completeOnTimeout(p, 2, TimeUnit.SECONDS).thenAccept(q -> {
+				if (q.isAlive()) {
+					q.descendants().forEach(ProcessHandle::destroyForcibly);
+					q.destroyForcibly();
+				}
+			});
+		}
+
+		void finish(JobState end, Integer exit) {
+			exitCode = exit;
+			ended = Instant.now();
+			state = killRequested ? JobState.KILLED : end;
+			log("JOB " + id + " " + state + (exit == null ? "" : " exit=" + exit));
+			done.complete(exit);
+		}
+
+		static String format(Duration d) {
+			long s = d.toSeconds();
+			return s < 3600
+					? String.format("%d:%02d", s / 60, s % 60)
+					: String.format("%d:%02d:%02d", s / 3600, s / 60 % 60, s % 60);
+		}
+	}
+
+	/** Keeps the last {@code capacity} bytes written, plus an optional live follower. */
+	static class OutputBuffer {
+		private final byte[] ring;
+		private long total;
+		private BlockingQueue<byte[]> follower;
+
+		OutputBuffer(int capacity) {
+			ring = new byte[capacity];
+		}
+
+		synchronized void write(byte[] bytes, int len) {
+			for (int off = 0; off < len;) {
+				int at = (int) (total % ring.length);
+				int n = Math.min(len - off, ring.length - at);
+				System.arraycopy(bytes, off, ring, at, n);
+				off += n;
+				total += n;
+			}
+			if (follower != null)
+				follower.add(Arrays.copyOf(bytes, len));
+		}
+
+		synchronized byte[] snapshot() {
+			int len = (int) Math.min(total, ring.length);
+			byte[] copy = new byte[len];
+			int start = (int) ((total - len) % ring.length);
+			int first = Math.min(len, ring.length - start);
+			System.arraycopy(ring, start, copy, 0, first);
+			System.arraycopy(ring, 0, copy, first, len - first);
+			return copy;
+		}
+
+		synchronized long dropped() {
+			return Math.max(0, total - ring.length);
+		}
+
+		/**
+		 * Returns a feed holding what is buffered now, followed by every chunk
+		 * written after it. Chunks are copied into the feed under the buffer's lock,
+		 * so nothing is missed or reordered, and the caller writes them out after
+		 * taking them, so a slow terminal never holds up the job's writer.
+		 */
+		synchronized BlockingQueue<byte[]> follow() {
+			follower = new LinkedBlockingQueue<>();
+			follower.add(snapshot());
+			return follower;
+		}
+
+		synchronized void unfollow() {
+			follower = null;
+		}
+	}
+
+	static class Jobs {
+
+		static final int OUTPUT_LIMIT = Integer.getInteger("menuapp.jobs.outputBytes", 256 * 1024);
+		static final int KEEP_FINISHED = Integer.getInteger("menuapp.jobs.keep", 100);
+
+		private static final AtomicInteger nextId = new AtomicInteger(1);
+		private static final ConcurrentSkipListMap<Integer, Job> jobs = new ConcurrentSkipListMap<>();
+
+		static {
+			// like a shell hanging up: jobs do not outlive the app
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				for (Job job : jobs.values())
+					if (job.state == JobState.RUNNING && job.process != null)
+						job.process.descendants().forEach(ProcessHandle::destroy);
+				for (Job job : jobs.values())
+					if (job.state == JobState.RUNNING && job.process != null)
+						job.process.destroy();
+			}, "menuapp-jobs-stop"));
+		}
+
+		static Job start(String label, String cmd, boolean secret, boolean captured) {
+			Job job = new Job(nextId.getAndIncrement(), secret ? label + " (secret)" : label, captured);
+			jobs.put(job.id, job);
+			prune();
+
+			ProcessBuilder pb = System.getProperty("os.name").toLowerCase().contains("win")
+					? new ProcessBuilder("cmd", "/c", cmd)
+					: new ProcessBuilder("sh", "-c", cmd);
+			if (captured)
+				pb.redirectErrorStream(true);
+			else
+				pb.inheritIO();
+
+			Thread.ofVirtual().name("job-" + job.id).start(() -> {
+				try {
+					Process p = pb.start();
+					job.process = p;
+					if (job.killRequested)
+						Job.destroy(p);
+					if (captured) {
+						p.getOutputStream().close();
+						try (InputStream in = p.getInputStream()) {
+							byte[] buf = new byte[8192];
+							int n;
+							while ((n = in.read(buf)) > 0)
+								job.output.write(buf, n);
+						}
+					}
+					job.finish(JobState.DONE, p.waitFor());
+				} catch (Exception e) {
+					byte[] message = (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+					job.output.write(message, message.length);
+					log("ERROR: job " + job.id + ": " + e.getMessage());
+					job.finish(JobState.FAILED, null);
+				}
+			});
+			return job;
+		}
+
+		static Job get(int id) {
+			return jobs.get(id);
+		}
+
+		static List<Job> list() {
+			return new ArrayList<>(jobs.values());
+		}
+
+		static Job newestRunning() {
+			for (Job job : jobs.descendingMap().values())
+				if (job.state == JobState.RUNNING)
+					return job;
+			return null;
+		}
+
+		/** Forgets the oldest finished jobs beyond {@link #KEEP_FINISHED}. */
+		private static void prune() {
+			int finished = 0;
+			for (Job job : jobs.descendingMap().values())
+				if (job.state != JobState.RUNNING && ++finished > KEEP_FINISHED)
+					jobs.remove(job.id);
+		}
+	}
+
+	static void log(String msg) {
+		LOG.append("[" + LocalDateTime.now() + "] " + msg);
+	}
+
+	/**
+	 * Log writer that never makes the caller touch the disk. Lines go into a
+	 * lock-free queue and one daemon thread drains it, writing whatever has
+	 * piled up in a single call on a file it keeps open. The file is rotated
+	 * to {@code .1} .. {@code .N} when it grows past {@link #MAX_BYTES} or gets
+	 * older than {@link #MAX_AGE}. The last {@link #RING_SIZE} lines are also
+	 * kept in memory (seeded from the end of the file on start) for the log
+	 * command and the GUI.
+	 */
+	static class AsyncLog {
+
+		static final long MAX_BYTES = Long.getLong("menuapp.log.maxBytes", 10L * 1024 * 1024);
+		static final Duration MAX_AGE = Duration.ofHours(Long.getLong("menuapp.log.maxAgeHours", 24));
+		static final int KEEP_FILES = Integer.getInteger("menuapp.log.keep", 5);
+		static final int RING_SIZE = Integer.getInteger("menuapp.log.ring", 1000);
+
+		private final Path file;
+		private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+		private final AtomicLong enqueued = new AtomicLong();
+		private volatile long written;
+		private volatile boolean failing;
+		private final String[] ring = new String[RING_SIZE];
+		private int ringNext;
+		private int ringCount;
+		private final Thread writer;
+
+		private FileChannel channel;
+		private Instant openedAt;
+
+		AsyncLog(Path file) {
+			this.file = file;
+			seedRing();
+			writer = new Thread(this::drainLoop, "menuapp-log");
+			writer.setDaemon(true);
+			writer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "menuapp-log-flush"));
+		}
+
+		void append(String line) {
+			synchronized (ring) {
+				remember(line);
+			}
+			queue.add(line);
+			enqueued.incrementAndGet();
+			LockSupport.unpark(writer);
+		}
+
+		private void remember(String line) {
+			ring[ringNext] = line;
+			ringNext = (ringNext + 1) % ring.length;
+			ringCount = Math.min(ringCount + 1, ring.length);
+		}
+
+		/** Newest {@link #RING_SIZE} lines, oldest first. */
+		List<String> recent() {
+			synchronized (ring) {
+				List<String> lines = new ArrayList<>(ringCount);
+				for (int i = 0; i < ringCount; i++)
+					lines.add(ring[(ringNext - ringCount + i + ring.length) % ring.length]);
+				return lines;
+			}
+		}
+
+		int recentCount() {
+			synchronized (ring) {
+				return ringCount;
+			}
+		}
+
+		/** Reads the live file and then each rotated one, newest line first. */
+		ReverseLineReader reverseReader() {
+			List<Path> files = new ArrayList<>();
+			files.add(file);
+			for (int i = 1; i <= KEEP_FILES; i++)
+				files.add(sibling(i));
+			return new ReverseLineReader(files);
+		}
+
+		/**
+		 * Newest {@code limit} lines matching {@code grep} and not older than
+		 * {@code since}, oldest first. Scans backwards and stops at the first
+		 * line older than {@code since}, so only the end of the log is read.
+		 */
+		List<String> search(int limit, Pattern grep, LocalDateTime since) throws IOException {
+			flush();
+			List<String> found = new ArrayList<>();
+			try (ReverseLineReader lines = reverseReader()) {
+				String line;
+				while (found.size() < limit && (line = lines.readLine()) != null) {
+					if (since != null) {
+						LocalDateTime at = timestampOf(line);
+						if (at != null && at.isBefore(since))
+							break;
+					}
+					if (grep == null || grep.matcher(line).find())
+						found.add(line);
+				}
+			}
+			Collections.reverse(found);
+			return found;
+		}
+
+		static LocalDateTime timestampOf(String line) {
+			int end = line.indexOf(']');
+			if (!line.startsWith("[") || end < 0)
+				return null;
+			try {
+				return LocalDateTime.parse(line.substring(1, end));
+			} catch (DateTimeParseException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Blocks until everything appended so far is on disk, or returns early
+		 * while the writer cannot write, so shutdown never hangs on a full disk.
+		 */
+		void flush() {
+			long target = enqueued.get();
+			while (written < target && writer.isAlive() && !failing) {
+				LockSupport.unpark(writer);
+				LockSupport.parkNanos(1_000_000);
+			}
+		}
+
+		/**
+		 * Writes whatever is queued as one batch. A batch that fails is kept and
+		 * retried, with anything queued meanwhile, on a reopened file once a second;
+		 * the failure is reported once per outage rather than once per attempt.
+		 */
+		private void drainLoop() {
+			StringBuilder batch = new StringBuilder();
+			int count = 0;
+			while (true) {
+				String line;
+				while ((line = queue.poll()) != null) {
+					batch.append(line).append('\n');
+					count++;
+				}
+				if (count == 0) {
+					LockSupport.parkNanos(200_000_000);
+					continue;
+				}
+				try {
+					write(batch);
+				} catch (IOException | RuntimeException e) {
+					if (!failing)
+						System.err.println("menuapp log: " + e + ", retrying");
+					failing = true;
+					closeQuietly();
+					LockSupport.parkNanos(1_000_000_000);
+					continue;
+				}
+				failing = false;
+				batch.setLength(0);
+				written += count;
+				count = 0;
+			}
+		}
+
+		private void write(CharSequence batch) throws IOException {
+			if (channel == null)
+				open();
+			if (channel.size() >= MAX_BYTES
+					|| Duration.between(openedAt, Instant.now()).compareTo(MAX_AGE) >= 0) {
+				rotate();
+				open();
+			}
+
+			ByteBuffer bytes = StandardCharsets.UTF_8.encode(batch.toString());
+			while (bytes.hasRemaining())
+				channel.write(bytes);
+		}
+
+		private void open() throws IOException {
+			channel = FileChannel.open(file,
 					StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE,
 					StandardOpenOption.APPEND);
-		} catch (Exception ignored) {
+			// an existing file keeps aging from its first entry, which survives restarts
+			// (creationTime() is only the mtime on most Linux filesystems)
+			openedAt = firstEntryTime();
+		}
+
+		private Instant firstEntryTime() throws IOException {
+			ByteBuffer head = ByteBuffer.allocate(128);
+			try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+				in.read(head, 0);
+			}
+			String text = new String(head.array(), 0, head.position(), StandardCharsets.UTF_8);
+			int newline = text.indexOf('\n');
+			LocalDateTime first = timestampOf(newline < 0 ? text : text.substring(0, newline));
+			return first != null ? first.atZone(ZoneId.systemDefault()).toInstant() : Instant.now();
+		}
+
+		private void rotate() throws IOException {
+			closeQuietly();
+			for (int i = KEEP_FILES - 1; i >= 1; i--) {
+				Path from = sibling(i);
+				if (Files.exists(from))
+					Files.move(from, sibling(i + 1), StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (KEEP_FILES > 0)
+				Files.move(file, sibling(1), StandardCopyOption.REPLACE_EXISTING);
+			else
+				Files.deleteIfExists(file);
+		}
+
+		Path sibling(int index) {
+			return file.resolveSibling(file.getFileName() + "." + index);
+		}
+
+		private void closeQuietly() {
+			try {
+				if (channel != null)
+					channel.close();
+			} catch (IOException ignored) {
+			}
+			channel = null;
+		}
+
+		/** Fills the ring from the last lines of the file, reading only its tail. */
+		private void seedRing() {
+			if (!Files.isRegularFile(file))
+				return;
+			try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+				long size = in.size();
+				int want = (int) Math.min(size, 256L * RING_SIZE);
+				ByteBuffer tail = ByteBuffer.allocate(want);
+				in.read(tail, size - want);
+				String text = new String(tail.array(), 0, tail.position(), StandardCharsets.UTF_8);
+				String[] lines = text.split("\n");
+				// the first line is probably cut in half unless we read the whole file
+				int from = want < size ? 1 : 0;
+				from = Math.max(from, lines.length - RING_SIZE);
+				synchronized (ring) {
+					for (int i = from; i < lines.length; i++) {
+						if (!lines[i].isEmpty())
+							remember(lines[i]);
+					}
+				}
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Reads lines from the end of a file towards its start, then on to the
+	 * next file, using positional reads of {@link #BLOCK} bytes so that memory
+	 * use depends on the longest line rather than the file size. Missing files
+	 * are skipped, blank lines are dropped.
+	 */
+	static class ReverseLineReader implements Closeable {
+
+		static final int BLOCK = 64 * 1024;
+
+		private final List<Path> files;
+		private int fileIndex = -1;
+		private FileChannel channel;
+		private long filePos;
+		// unread bytes are buf[start, end); buf[clean, end) is known to hold no newline
+		private byte[] buf = new byte[0];
+		private int start;
+		private int end;
+		private int clean;
+
+		ReverseLineReader(List<Path> files) {
+			this.files = files;
+		}
+
+		/** Previous line, or null once every file is exhausted. */
+		String readLine() throws IOException {
+			while (true) {
+				if (channel == null && !nextFile())
+					return null;
+				int nl = clean - 1;
+				while (nl >= start && buf[nl] != '\n')
+					nl--;
+				if (nl < start && filePos > 0) {
+					clean = start;
+					fill();
+					continue;
+				}
+				// with nl < start the rest of the buffer is the first line of the file
+				String line = new String(buf, nl + 1, end - nl - 1, StandardCharsets.UTF_8);
+				end = Math.max(nl, start);
+				clean = end;
+				if (nl < start)
+					closeChannel();
+				if (line.endsWith("\r"))
+					line = line.substring(0, line.length() - 1);
+				if (!line.isEmpty())
+					return line;
+			}
+		}
+
+		/**
+		 * Reads the block before {@code filePos} into the free space in front of
+		 * {@code start}. When there is not enough, the unread bytes are moved to the
+		 * back of the buffer, which doubles once they would fill more than half of it,
+		 * so a long line costs linear rather than quadratic copying.
+		 */
+		private void fill() throws IOException {
+			int size = (int) Math.min(BLOCK, filePos);
+			if (start < size) {
+				int unread = end - start;
+				byte[] target = buf.length - unread >= size && unread <= buf.length / 2
+						? buf
+						: new byte[Math.max(buf.length * 2, unread + size)];
+				int shift = target.length - end;
+				System.arraycopy(buf, start, target, start + shift, unread);
+				buf = target;
+				start += shift;
+				end += shift;
+				clean += shift;
+			}
+			ByteBuffer block = ByteBuffer.wrap(buf, start - size, size);
+			long at = filePos - size - (start - size);
+			while (block.hasRemaining()) {
+				int n = channel.read(block, at + block.position());
+				if (n < 0)
+					throw new IOException("log file shrank while reading");
+			}
+			start -= size;
+			filePos -= size;
+		}
+
+		private boolean nextFile() throws IOException {
+			while (++fileIndex < files.size()) {
+				Path path = files.get(fileIndex);
+				if (!Files.isRegularFile(path))
+					continue;
+				channel = FileChannel.open(path, StandardOpenOption.READ);
+				filePos = channel.size();
+				start = end = clean = buf.length;
+				return true;
+			}
+			return false;
+		}
+
+		private void closeChannel() throws IOException {
+			if (channel != null)
+				channel.close();
+			channel = null;
+			buf = new byte[0];
+			start = end = clean = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			closeChannel();
+			fileIndex = files.size();
 		}
 	}
 
@@ -458,30 +1629,119 @@ public class MenuApp implements Runnable {
 					MenuConfig.class);
 		}
 
-		static void watch(String file, Runnable reload) {
-			new Thread(() -> {
-				try {
-					WatchService ws = FileSystems.getDefault()
-						.newWatchService();
-					Path path = Paths.get(file)
-						.toAbsolutePath()
-						.getParent();
-					path.register(ws,
+		static final long DEBOUNCE_MS = Long.getLong("menuapp.reload.debounceMs", 300);
+
+		private static WatchService watchService;
+		private static final Map<Path, List<Watch>> watches = new ConcurrentHashMap<>();
+		private static final ScheduledExecutorService debouncer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "menus-reload");
+			t.setDaemon(true);
+			return t;
+		});
+
+		/** One watched file. The digest is of the content last handed to {@link #onChange}. */
+		static class Watch {
+			final Path file;
+			final Consumer<MenuConfig> onChange;
+			byte[] digest;
+			ScheduledFuture<?> pending;
+
+			Watch(Path file, Consumer<MenuConfig> onChange) {
+				this.file = file;
+				this.onChange = onChange;
+			}
+		}
+
+		/**
+		 * Calls {@code onChange} with the freshly parsed config after
+		 * {@code file} changes. All watches share one daemon thread and one
+		 * {@link WatchService}. A burst of events (editors fire several per
+		 * save) becomes a single reload {@link #DEBOUNCE_MS} after the last
+		 * one. Saves that leave the content as it was are ignored, and a file
+		 * that does not parse is logged and skipped so the caller keeps what it
+		 * has. {@code onChange} runs on the reload thread, one call at a time, and
+		 * must have applied the config by the time it returns; throwing rejects
+		 * it, so the same content is tried again on the next save.
+		 */
+		static synchronized void watch(String file, Consumer<MenuConfig> onChange) {
+			Path path = Paths.get(file).toAbsolutePath();
+			Watch watch = new Watch(path, onChange);
+			try {
+				watch.digest = digest(Files.readAllBytes(path));
+			} catch (IOException e) {
+				// first successful read will count as a change
+			}
+			try {
+				if (watchService == null) {
+					watchService = FileSystems.getDefault().newWatchService();
+					Thread t = new Thread(MenuLoader::watchLoop, "menus-watcher");
+					t.setDaemon(true);
+					t.start();
+				}
+				Path dir = path.getParent();
+				if (!watches.containsKey(dir))
+					dir.register(watchService,
+							StandardWatchEventKinds.ENTRY_CREATE,
 							StandardWatchEventKinds.ENTRY_MODIFY);
-					while (true) {
-						WatchKey key = ws.take();
-						for (WatchEvent<?> ev : key.pollEvents())
-							if (ev.context()
-								.toString()
-								.equals(file))
-								reload.run();
-						key.reset();
-					}
-				} catch (Exception e) {
-					log("Watcher error: "
-							+ e.getMessage());
+				watches.computeIfAbsent(dir, d -> new CopyOnWriteArrayList<>()).add(watch);
+			} catch (IOException e) {
+				log("Watcher error: "
+						+ e.getMessage());
+			}
+		}
+
+		private static void watchLoop() {
+			try {
+				while (true) {
+					WatchKey key = watchService.take();
+					Path dir = (Path) key.watchable();
+					for (WatchEvent<?> ev : key.pollEvents())
+						for (Watch watch : watches.getOrDefault(dir, List.of()))
+							if (ev.kind() == StandardWatchEventKinds.OVERFLOW
+									|| watch.file.equals(dir.resolve((Path) ev.context())))
+								schedule(watch);
+					key.reset();
 				}
-			}).start();
+			} catch (Exception e) {
+				log("Watcher error: "
+						+ e.getMessage());
+			}
+		}
+
+		private static void schedule(Watch watch) {
+			synchronized (watch) {
+				if (watch.pending != null)
+					watch.pending.cancel(false);
+				watch.pending = debouncer.schedule(() -> reload(watch), DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		private static void reload(Watch watch) {
+			try {
+				byte[] content = Files.readAllBytes(watch.file);
+				byte[] digest = digest(content);
+				if (Arrays.equals(digest, watch.digest))
+					return;
+
+				MenuConfig cfg = mapper.readValue(content, MenuConfig.class);
+				if (cfg == null || cfg.menus == null)
+					throw new IOException("no \"menus\" array");
+
+				watch.onChange.accept(cfg);
+				watch.digest = digest;
+				log("Reloaded " + watch.file.getFileName());
+			} catch (Exception e) {
+				log("Keeping previous menus, " + watch.file.getFileName()
+						+ " did not load: " + String.valueOf(e.getMessage()).replace('\n', ' '));
+			}
+		}
+
+		private static byte[] digest(byte[] content) {
+			try {
+				return MessageDigest.getInstance("SHA-256").digest(content);
+			} catch (java.security.NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
 		}
 	}
 
@@ -2,29 +2,157 @@
 //JAVA 17+
 //DEPS com.fasterxml.jackson.core:jackson-databind:2.17.0
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+import com.fasterxml.jackson.core.util.JsonParserSequence;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public class AwsEc2ToSshConfig {
 
     private static final String DEFAULT_USER = "ubuntu";
+    private static final JsonFactory JSON = new ObjectMapper().getFactory();
     private static String identityFile;
+    private static Mapping mapping;
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
 
-        if (args.length == 0 || args[0].isBlank()) {
-            System.err.println("Usage: jbang AwsEc2ToSshConfig.java <IDENTITY_FILE>");
+        if (args.length == 0 || args[0].isBlank() || args[0].startsWith("--")) {
+            System.err.println("Usage: jbang AwsEc2ToSshConfig.java <IDENTITY_FILE> [--input <FILE|DIR|->]... [--merge[=CONFIG]] [--prune]");
+            System.err.println("  Without --input the Swing UI is shown; on a headless system stdin is read.");
+            System.err.println("  --input  may be repeated; a directory stands for all *.json files in it");
+            System.err.println("  --map    KEY=EXPR, repeatable; KEY is one of " + Mapping.KEYS + ", e.g.");
+            System.err.println("           --map 'host=PrivateIpAddress' --map 'user=Tags[Key=SshUser].Value'");
+            System.err.println("           `aws ec2 describe-instances` output is recognised without any --map");
+            System.err.println("  --merge  update the aws2ssh blocks in CONFIG (default ~/.ssh/config) instead of printing");
+            System.err.println("  --prune  with --merge, drop aws2ssh blocks for instances that are no longer present");
             System.exit(1);
         }
 
         identityFile = args[0];
 
+        List<String> inputs = new ArrayList<>();
+        Map<String, String> overrides = new HashMap<>();
+        Path merge = null;
+        boolean prune = false;
+        for (int i = 1; i < args.length; i++) {
+            String map = args[i].equals("--map") && i + 1 < args.length ? args[++i]
+                    : args[i].startsWith("--map=") ? args[i].substring("--map=".length()) : null;
+            if (map != null) {
+                int eq = map.indexOf('=');
+                if (eq < 0) {
+                    System.err.println("--map expects KEY=EXPR: " + map);
+                    System.exit(1);
+                }
+                overrides.put(map.substring(0, eq).strip(), map.substring(eq + 1).strip());
+                continue;
+            }
+
+            if (args[i].equals("--input") && i + 1 < args.length) {
+                inputs.add(args[++i]);
+            } else if (args[i].startsWith("--input=")) {
+                inputs.add(args[i].substring("--input=".length()));
+            } else if (args[i].equals("--merge")) {
+                merge = Path.of(System.getProperty("user.home"), ".ssh", "config");
+            } else if (args[i].startsWith("--merge=")) {
+                merge = Path.of(args[i].substring("--merge=".length()));
+            } else if (args[i].equals("--prune")) {
+                prune = true;
+            } else {
+                System.err.println("Unknown argument: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        if (!overrides.isEmpty()) {
+            try {
+                mapping = Mapping.nativeWith(overrides);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (inputs.isEmpty() && (merge != null || GraphicsEnvironment.isHeadless())) {
+            inputs.add("-");
+        }
+
+        if (merge != null) {
+            System.err.println(SshConfigMerge.merge(merge, convertAll(inputs), prune));
+            return;
+        }
+
+        if (inputs.size() == 1 && !Files.isDirectory(Path.of(inputs.get(0)))) {
+            convertHeadless(inputs.get(0));
+            return;
+        }
+
+        if (!inputs.isEmpty()) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024);
+            for (Ec2Host host : convertAll(inputs)) {
+                host.appendTo(out);
+            }
+            out.flush();
+            return;
+        }
+
         SwingUtilities.invokeLater(AwsEc2ToSshConfig::createUI);
     }
 
+    /**
+     * Streams {@code input} (a file, or {@code -} for stdin) to stdout without
+     * touching AWT, so it runs over SSH and in CI just as well.
+     */
+    private static void convertHeadless(String input) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024);
+        try (InputStream in = input.equals("-") ? System.in : Files.newInputStream(Path.of(input));
+             JsonParser parser = JSON.createParser(in)) {
+            int count = convert(parser, host -> {
+                try {
+                    host.appendTo(out);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            out.flush();
+            System.err.println("Converted " + count + " instance(s)");
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
     private static void createUI() {
         JFrame frame = new JFrame("EC2 JSON → SSH Config");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -41,13 +169,41 @@ public class AwsEc2ToSshConfig {
         JScrollPane outputScroll = new JScrollPane(outputArea);
 
         JButton convertButton = new JButton("Convert");
+        JButton cancelButton = new JButton("Cancel");
+        cancelButton.setEnabled(false);
+
+        JProgressBar progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setVisible(false);
+        JLabel countLabel = new JLabel(" ");
+
+        ConvertWorker[] running = {null};
 
         convertButton.addActionListener(e -> {
-            try {
-                String result = convertJsonToSsh(inputArea.getText());
-                outputArea.setText(result);
-            } catch (Exception ex) {
-                outputArea.setText("Error:\n" + ex.getMessage());
+            outputArea.setText("");
+            progressBar.setValue(0);
+            progressBar.setVisible(true);
+            countLabel.setText("Converting…");
+            convertButton.setEnabled(false);
+            cancelButton.setEnabled(true);
+
+            ConvertWorker worker = new ConvertWorker(inputArea.getText(), outputArea, countLabel);
+            worker.addPropertyChangeListener(event -> {
+                if ("progress".equals(event.getPropertyName())) {
+                    progressBar.setValue((Integer) event.getNewValue());
+                } else if ("state".equals(event.getPropertyName()) && event.getNewValue() == SwingWorker.StateValue.DONE) {
+                    progressBar.setVisible(false);
+                    convertButton.setEnabled(true);
+                    cancelButton.setEnabled(false);
+                }
+            });
+            running[0] = worker;
+            worker.execute();
+        });
+
+        cancelButton.addActionListener(e -> {
+            if (running[0] != null) {
+                running[0].cancel(false);
             }
         });
 
@@ -57,6 +213,9 @@ public class AwsEc2ToSshConfig {
 
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
         buttonPanel.add(convertButton);
+        buttonPanel.add(cancelButton);
+        buttonPanel.add(progressBar);
+        buttonPanel.add(countLabel);
 
         frame.setLayout(new BorderLayout(8, 8));
         frame.add(textPanel, BorderLayout.CENTER);
@@ -66,48 +225,787 @@ public class AwsEc2ToSshConfig {
         frame.setVisible(true);
     }
 
-    private static String convertJsonToSsh(String json) throws Exception {
-        ObjectMapper mapper = new ObjectMapper();
-        JsonNode root = mapper.readTree(json);
+    /** A host together with the input it was read from, for ordering and duplicate reports. */
+    private record Sourced(String source, Ec2Host host) {
+    }
+
+    private static final Comparator<Sourced> HOST_ORDER = Comparator
+            .comparing((Sourced s) -> s.host().name())
+            .thenComparing(s -> s.host().id())
+            .thenComparing(Sourced::source);
+
+    /**
+     * Converts every input on the common fork-join pool, one file per task, and
+     * returns the hosts sorted by Name then InstanceId so the result does not
+     * depend on file or scheduling order. When the same alias comes from more
+     * than one place the first in that order wins and the rest are reported.
+     */
+    static List<Ec2Host> convertAll(List<String> inputs) throws IOException {
+        List<String> sources = new ArrayList<>();
+        for (String input : inputs) {
+            Path path = Path.of(input);
+            if (!input.equals("-") && Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.list(path)) {
+                    files.filter(f -> Files.isRegularFile(f) && f.getFileName().toString().endsWith(".json"))
+                            .sorted()
+                            .forEach(f -> sources.add(f.toString()));
+                }
+            } else {
+                sources.add(input);
+            }
+        }
+
+        long start = System.nanoTime();
+        List<Sourced> parsed;
+        try {
+            parsed = sources.parallelStream()
+                    .flatMap(source -> read(source).stream())
+                    .sorted(HOST_ORDER)
+                    .toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
 
-        StringBuilder sb = new StringBuilder();
-        processNode(root, sb);
-        return sb.toString();
+        Map<String, String> firstSource = new HashMap<>();
+        List<Ec2Host> hosts = new ArrayList<>(parsed.size());
+        int duplicates = 0;
+        for (Sourced sourced : parsed) {
+            String alias = sourced.host().alias();
+            String first = firstSource.putIfAbsent(alias, sourced.source());
+            if (first == null) {
+                hosts.add(sourced.host());
+            } else {
+                System.err.println("Duplicate host " + alias + " in " + sourced.source() + " (already read from " + first + "), ignored");
+                duplicates++;
+            }
+        }
+
+        System.err.printf("Converted %d instance(s) from %d input(s) in %d ms%s%n",
+                hosts.size(), sources.size(), (System.nanoTime() - start) / 1_000_000,
+                duplicates == 0 ? "" : ", " + duplicates + " duplicate(s) ignored");
+        return hosts;
     }
 
-    private static void processNode(JsonNode node, StringBuilder sb) {
-        if (node == null) return;
+    private static List<Sourced> read(String source) {
+        List<Sourced> hosts = new ArrayList<>();
+        try (InputStream in = source.equals("-") ? System.in : Files.newInputStream(Path.of(source));
+             JsonParser parser = JSON.createParser(in)) {
+            convert(parser, host -> hosts.add(new Sourced(source, host)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(new IOException(source + ": " + e.getMessage(), e));
+        }
+        return hosts;
+    }
+
+    /**
+     * Runs the conversion off the EDT. Hosts are published as they are found and
+     * appended to the output document in whole batches, so the text area sees one
+     * insert per repaint instead of one giant {@code setText} at the end. Progress
+     * is the parser's position in the input.
+     */
+    private static final class ConvertWorker extends SwingWorker<Integer, Ec2Host> {
+
+        private final String json;
+        private final JTextArea outputArea;
+        private final JLabel countLabel;
+        private int shown;
 
-        if (node.isArray()) {
-            for (JsonNode item : node) {
-                processNode(item, sb);
+        ConvertWorker(String json, JTextArea outputArea, JLabel countLabel) {
+            this.json = json;
+            this.outputArea = outputArea;
+            this.countLabel = countLabel;
+        }
+
+        @Override
+        protected Integer doInBackground() throws IOException {
+            try (JsonParser parser = cancellable(JSON.createParser(json))) {
+                return convert(parser, host -> {
+                    publish(host);
+                    if (!json.isEmpty()) {
+                        long offset = parser.currentLocation().getCharOffset();
+                        setProgress((int) Math.min(100, offset * 100 / json.length()));
+                    }
+                });
             }
-            return;
         }
 
-        if (node.isObject()) {
-            String id = text(node, "InstanceId");
-            String name = text(node, "Name");
-            String dns = text(node, "PublicDNS");
-            String user = text(node, "User");
+        /**
+         * Checks for cancellation every time an object closes, so a cancelled run
+         * stops within one instance even when instances are skipped without
+         * producing a host.
+         */
+        private JsonParser cancellable(JsonParser parser) {
+            return new JsonParserDelegate(parser) {
+                @Override
+                public JsonToken nextToken() throws IOException {
+                    JsonToken token = super.nextToken();
+                    if (token == JsonToken.END_OBJECT && isCancelled()) {
+                        throw new CancellationException();
+                    }
+                    return token;
+                }
+            };
+        }
+
+        @Override
+        protected void process(List<Ec2Host> hosts) {
+            if (isCancelled()) {
+                return;
+            }
+            StringBuilder batch = new StringBuilder(hosts.size() * 128);
+            for (Ec2Host host : hosts) {
+                host.appendTo(batch);
+            }
+            outputArea.append(batch.toString());
+            shown += hosts.size();
+            countLabel.setText(shown + " instance(s)");
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                countLabel.setText("Cancelled after " + shown + " instance(s)");
+                return;
+            }
+            try {
+                countLabel.setText(get() + " instance(s) converted");
+            } catch (ExecutionException ex) {
+                outputArea.setText("Error:\n" + ex.getCause().getMessage());
+                countLabel.setText(" ");
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * One generated {@code Host} block.
+     */
+    record Ec2Host(String id, String name, String hostName, String user) {
+
+        String alias() {
+            return name + "_" + id;
+        }
+
+        void appendTo(StringBuilder sb) {
+            try {
+                appendTo((Appendable) sb);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        void appendTo(Appendable out) throws IOException {
+            for (String line : lines()) {
+                out.append(line).append("\n");
+            }
+            out.append("\n");
+        }
+
+        List<String> lines() {
+            return List.of(
+                    "Host " + alias(),
+                    "    HostName " + hostName,
+                    "    IdentityFile " + identityFile,
+                    "    User " + user);
+        }
+    }
+
+    /**
+     * Keeps the EC2-generated part of an ssh config in sync. Each generated host
+     * lives between {@code # BEGIN aws2ssh <alias>} and {@code # END aws2ssh <alias>}
+     * markers. Everything outside the markers is copied through byte-for-byte.
+     * A managed block is only rewritten when its content changed, and the file
+     * itself is only replaced (temp file + atomic rename) when at least one block
+     * did.
+     */
+    static final class SshConfigMerge {
+
+        private static final String BEGIN = "# BEGIN aws2ssh ";
+        private static final String END = "# END aws2ssh ";
+
+        record Result(Path config, int added, int updated, int unchanged, int removed, List<String> conflicts,
+                      boolean written) {
+
+            @Override
+            public String toString() {
+                StringBuilder sb = new StringBuilder();
+                sb.append(config).append(": ")
+                        .append(added).append(" added, ")
+                        .append(updated).append(" updated, ")
+                        .append(unchanged).append(" unchanged, ")
+                        .append(removed).append(" removed");
+                if (!conflicts.isEmpty()) {
+                    sb.append(", ").append(conflicts.size()).append(" skipped (Host already defined outside aws2ssh blocks: ")
+                            .append(String.join(", ", conflicts)).append(")");
+                }
+                sb.append(written ? "" : " - file not modified");
+                return sb.toString();
+            }
+        }
+
+        /** A run of lines of the original file: either unmanaged text or one managed block. */
+        private record Segment(String alias, String text) {
+        }
+
+        private SshConfigMerge() {
+        }
+
+        static Result merge(Path config, Iterable<Ec2Host> hosts, boolean prune) throws IOException {
+            String original = Files.exists(config) ? Files.readString(config, StandardCharsets.UTF_8) : "";
+            String eol = original.contains("\r\n") ? "\r\n" : "\n";
+
+            List<Segment> segments = parse(original);
+            Map<String, Integer> managed = new HashMap<>();
+            Set<String> unmanagedHosts = new HashSet<>();
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                if (segment.alias() != null) {
+                    managed.put(segment.alias(), i);
+                } else {
+                    collectHosts(segment.text(), unmanagedHosts);
+                }
+            }
+
+            int added = 0;
+            int updated = 0;
+            int unchanged = 0;
+            List<String> conflicts = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            StringBuilder appended = new StringBuilder();
+
+            for (Ec2Host host : hosts) {
+                String alias = host.alias();
+                seen.add(alias);
+                String block = block(host, eol);
+                Integer index = managed.get(alias);
+
+                if (index != null) {
+                    if (segments.get(index).text().equals(block)) {
+                        unchanged++;
+                    } else {
+                        segments.set(index, new Segment(alias, block));
+                        updated++;
+                    }
+                } else if (unmanagedHosts.contains(alias.toLowerCase(Locale.ROOT))) {
+                    conflicts.add(alias);
+                } else {
+                    appended.append(block);
+                    added++;
+                }
+            }
+
+            int removed = 0;
+            if (prune) {
+                for (Map.Entry<String, Integer> entry : managed.entrySet()) {
+                    if (!seen.contains(entry.getKey())) {
+                        segments.set(entry.getValue(), null);
+                        removed++;
+                    }
+                }
+            }
+
+            // ssh uses the first value it finds, so managed blocks must precede any catch-all stanza
+            int catchAll = -1;
+            int splitAt = -1;
+            for (int i = 0; i < segments.size() && catchAll < 0; i++) {
+                Segment segment = segments.get(i);
+                if (segment != null && segment.alias() == null) {
+                    splitAt = catchAllOffset(segment.text());
+                    if (splitAt >= 0) {
+                        catchAll = i;
+                    }
+                }
+            }
+
+            StringBuilder merged = new StringBuilder(original.length() + appended.length());
+            StringBuilder moved = new StringBuilder();
+            StringBuilder tail = new StringBuilder();
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                if (segment == null) {
+                    continue;
+                }
+                if (catchAll < 0 || i < catchAll) {
+                    merged.append(segment.text());
+                } else if (i == catchAll) {
+                    merged.append(segment.text(), 0, splitAt);
+                    tail.append(segment.text(), splitAt, segment.text().length());
+                } else if (segment.alias() != null) {
+                    moved.append(segment.text());
+                } else {
+                    tail.append(segment.text());
+                }
+            }
+            appended.insert(0, moved);
+            if (!appended.isEmpty()) {
+                if (!merged.isEmpty() && !endsWithBlankLine(merged)) {
+                    merged.append(merged.charAt(merged.length() - 1) == '\n' ? eol : eol + eol);
+                }
+                merged.append(appended);
+            }
+            merged.append(tail);
+
+            boolean written = !merged.toString().equals(original);
+            if (written) {
+                write(config, merged.toString());
+            }
+            return new Result(config, added, updated, unchanged, removed, conflicts, written);
+        }
+
+        /**
+         * Splits {@code text} into unmanaged runs and managed blocks, keeping every
+         * line terminator. A managed block includes the blank line that follows its
+         * END marker, so removing it leaves no gap behind.
+         */
+        private static List<Segment> parse(String text) {
+            List<Segment> segments = new ArrayList<>();
+            StringBuilder plain = new StringBuilder();
+            StringBuilder block = null;
+            String alias = null;
+
+            int start = 0;
+            while (start < text.length()) {
+                int newline = text.indexOf('\n', start);
+                int end = newline < 0 ? text.length() : newline + 1;
+                String line = text.substring(start, end);
+                String trimmed = line.strip();
+                start = end;
+
+                if (block == null && trimmed.startsWith(BEGIN)) {
+                    if (!plain.isEmpty()) {
+                        segments.add(new Segment(null, plain.toString()));
+                        plain.setLength(0);
+                    }
+                    alias = trimmed.substring(BEGIN.length()).strip();
+                    block = new StringBuilder(line);
+                } else if (block != null) {
+                    block.append(line);
+                    if (trimmed.equals(END + alias)) {
+                        int next = text.indexOf('\n', start);
+                        String following = text.substring(start, next < 0 ? text.length() : next + 1);
+                        if (!following.isEmpty() && following.isBlank()) {
+                            block.append(following);
+                            start += following.length();
+                        }
+                        segments.add(new Segment(alias, block.toString()));
+                        block = null;
+                    }
+                } else {
+                    plain.append(line);
+                }
+            }
+
+            // an unterminated BEGIN is left alone rather than guessed at
+            if (block != null) {
+                plain.append(block);
+            }
+            if (!plain.isEmpty()) {
+                segments.add(new Segment(null, plain.toString()));
+            }
+            return segments;
+        }
+
+        /**
+         * Returns where the first {@code Host *} (any Host line with a bare {@code *}
+         * pattern) or {@code Match all} stanza in {@code text} starts, including the
+         * comment lines directly above it, or -1 if there is none.
+         */
+        private static int catchAllOffset(String text) {
+            int start = 0;
+            int comments = -1;
+            while (start < text.length()) {
+                int newline = text.indexOf('\n', start);
+                int end = newline < 0 ? text.length() : newline + 1;
+                String trimmed = text.substring(start, end).strip();
+                if (trimmed.startsWith("#")) {
+                    if (comments < 0) {
+                        comments = start;
+                    }
+                } else {
+                    String[] words = trimmed.split("[\\s=]+");
+                    boolean catchAllHost = words[0].equalsIgnoreCase("Host")
+                            && Arrays.asList(words).subList(1, words.length).contains("*");
+                    boolean matchAll = words[0].equalsIgnoreCase("Match")
+                            && words.length == 2 && words[1].equalsIgnoreCase("all");
+                    if (catchAllHost || matchAll) {
+                        return comments >= 0 ? comments : start;
+                    }
+                    comments = -1;
+                }
+                start = end;
+            }
+            return -1;
+        }
+
+        private static void collectHosts(String text, Set<String> hosts) {
+            for (String line : text.split("\r?\n")) {
+                String trimmed = line.strip();
+                if (trimmed.length() > 5 && trimmed.regionMatches(true, 0, "Host", 0, 4)
+                        && (Character.isWhitespace(trimmed.charAt(4)) || trimmed.charAt(4) == '=')) {
+                    for (String pattern : trimmed.substring(5).strip().split("[\\s=]+")) {
+                        if (!pattern.isEmpty()) {
+                            hosts.add(pattern.toLowerCase(Locale.ROOT));
+                        }
+                    }
+                }
+            }
+        }
+
+        private static String block(Ec2Host host, String eol) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(BEGIN).append(host.alias()).append(eol);
+            for (String line : host.lines()) {
+                sb.append(line).append(eol);
+            }
+            sb.append(END).append(host.alias()).append(eol);
+            sb.append(eol);
+            return sb.toString();
+        }
+
+        private static boolean endsWithBlankLine(CharSequence text) {
+            int length = text.length();
+            if (length > 0 && text.charAt(length - 1) == '\n') {
+                length--;
+            }
+            if (length > 0 && text.charAt(length - 1) == '\r') {
+                length--;
+            }
+            return length > 0 && text.charAt(length - 1) == '\n';
+        }
 
-            if (id != null && name != null && dns != null) {
-                if (user == null || user.isBlank()) {
-                    user = DEFAULT_USER;
+        private static void write(Path config, String content) throws IOException {
+            // follow a symlinked ~/.ssh/config instead of replacing the link
+            config = Files.exists(config) ? config.toRealPath() : config;
+            Path dir = config.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            Path temp = Files.createTempFile(dir, "." + config.getFileName(), ".tmp");
+            try {
+                Files.writeString(temp, content, StandardCharsets.UTF_8);
+                if (Files.exists(config)) {
+                    PosixFileAttributeView view = Files.getFileAttributeView(config, PosixFileAttributeView.class);
+                    if (view != null) {
+                        Files.setPosixFilePermissions(temp, view.readAttributes().permissions());
+                    }
                 }
+                Files.move(temp, config, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
 
-                sb.append("Host ").append(name).append("_").append(id).append("\n");
-                sb.append("    HostName ").append(dns).append("\n");
-                sb.append("    IdentityFile ").append(identityFile).append("\n");
-                sb.append("    User ").append(user).append("\n\n");
+    /**
+     * Fields of one JSON object that is still open. Only the scalar members we
+     * care about are kept, so memory grows with nesting depth rather than with
+     * the size of the document.
+     */
+    private static final class Frame {
+        String id;
+        String name;
+        String dns;
+        String user;
+
+        void set(String field, String value) {
+            switch (field) {
+                case "InstanceId" -> id = value;
+                case "Name" -> name = value;
+                case "PublicDNS" -> dns = value;
+                case "User" -> user = value;
+                default -> {
+                }
             }
+        }
+    }
+
+    /**
+     * Converts one document. With an explicit {@link #mapping} it is applied as
+     * is. Otherwise the first two tokens decide: a root object whose first key is
+     * {@code Reservations} is native {@code describe-instances} output and goes
+     * through {@link Mapping#NATIVE}, anything else is scanned for the flat
+     * {@code InstanceId}/{@code Name}/{@code PublicDNS}/{@code User} shape.
+     *
+     * @return number of hosts emitted
+     */
+    static int convert(JsonParser parser, Consumer<Ec2Host> sink) throws IOException {
+        if (mapping != null) {
+            return mapping.apply(parser, sink);
+        }
 
-            node.fields().forEachRemaining(entry -> processNode(entry.getValue(), sb));
+        TokenBuffer peeked = new TokenBuffer(parser);
+        JsonToken first = parser.nextToken();
+        if (first == null) {
+            return 0;
+        }
+        peeked.copyCurrentEvent(parser);
+        boolean nativeFormat = false;
+        if (first == JsonToken.START_OBJECT && parser.nextToken() == JsonToken.FIELD_NAME) {
+            peeked.copyCurrentEvent(parser);
+            nativeFormat = "Reservations".equals(parser.currentName());
         }
+
+        JsonParser replay = JsonParserSequence.createFlattened(false, peeked.asParser(parser), parser);
+        return nativeFormat ? Mapping.NATIVE.apply(replay, sink) : scanFlat(replay, sink);
     }
 
-    private static String text(JsonNode node, String field) {
-        JsonNode v = node.get(field);
-        return (v == null || v.isNull()) ? null : v.asText();
+    /**
+     * Pulls tokens from {@code parser} and hands every object carrying
+     * {@code InstanceId}, {@code Name} and {@code PublicDNS} to {@code sink}.
+     * Objects are emitted when they close, so a nested match is reported before
+     * its enclosing one. Open objects are tracked on an explicit stack; arrays
+     * only push a placeholder so depth stays in sync.
+     */
+    private static int scanFlat(JsonParser parser, Consumer<Ec2Host> sink) throws IOException {
+        Deque<Frame> open = new ArrayDeque<>();
+        Frame array = new Frame();
+        int count = 0;
+
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+            switch (token) {
+                case START_OBJECT -> open.push(new Frame());
+                case START_ARRAY -> open.push(array);
+                case END_ARRAY -> open.pop();
+                case END_OBJECT -> {
+                    Frame frame = open.pop();
+                    if (frame.id != null && frame.name != null && frame.dns != null) {
+                        String user = frame.user == null || frame.user.isBlank() ? DEFAULT_USER : frame.user;
+                        sink.accept(new Ec2Host(frame.id, frame.name, frame.dns, user));
+                        count++;
+                    }
+                }
+                case VALUE_STRING, VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT, VALUE_TRUE, VALUE_FALSE, VALUE_NULL -> {
+                    Frame frame = open.peek();
+                    if (frame != null && frame != array) {
+                        frame.set(parser.currentName(), token == JsonToken.VALUE_NULL ? null : parser.getText());
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Where instances live in a document and how each {@link Ec2Host} field is
+     * read from one, compiled once and then applied per instance.
+     * <p>
+     * {@code instances} is a path of object keys and {@code [*]}, followed while
+     * streaming so only one instance is ever materialised. The field expressions
+     * are evaluated on that instance: dotted keys, {@code [n]}, {@code [*]} (first
+     * element that yields a value) and {@code [Key=Value]} (first element whose
+     * {@code Key} equals {@code Value}). Alternatives are separated by {@code |};
+     * the first non-blank result wins.
+     */
+    record Mapping(List<Step> instances, Map<String, List<List<Step>>> fields) {
+
+        static final List<String> KEYS = List.of("instances", "id", "name", "host", "user");
+
+        /** {@code aws ec2 describe-instances} output. */
+        private static final Map<String, String> NATIVE_EXPRS = Map.of(
+                "instances", "Reservations[*].Instances[*]",
+                "id", "InstanceId",
+                "name", "Tags[Key=Name].Value|InstanceId",
+                "host", "PublicDnsName|PublicIpAddress|PrivateDnsName|PrivateIpAddress",
+                "user", "Tags[Key=User].Value");
+
+        static final Mapping NATIVE = compile(NATIVE_EXPRS);
+
+        sealed interface Step permits Key, Index, Each, Filter {
+        }
+
+        record Key(String name) implements Step {
+        }
+
+        record Index(int index) implements Step {
+        }
+
+        record Each() implements Step {
+        }
+
+        record Filter(String key, String value) implements Step {
+        }
+
+        /** The native mapping with some of its expressions replaced. */
+        static Mapping nativeWith(Map<String, String> overrides) {
+            Map<String, String> exprs = new HashMap<>(NATIVE_EXPRS);
+            exprs.putAll(overrides);
+            return compile(exprs);
+        }
+
+        static Mapping compile(Map<String, String> exprs) {
+            for (String key : exprs.keySet()) {
+                if (!KEYS.contains(key)) {
+                    throw new IllegalArgumentException("Unknown mapping key '" + key + "', expected one of " + KEYS);
+                }
+            }
+
+            String instancesExpr = exprs.get("instances");
+            List<Step> instances = path(instancesExpr);
+            for (Step step : instances) {
+                if (!(step instanceof Key || step instanceof Each)) {
+                    throw new IllegalArgumentException("instances path supports only keys and [*]: " + instancesExpr);
+                }
+            }
+
+            Map<String, List<List<Step>>> fields = new HashMap<>();
+            for (String key : KEYS.subList(1, KEYS.size())) {
+                List<List<Step>> alternatives = new ArrayList<>();
+                for (String alternative : exprs.get(key).split("\\|")) {
+                    alternatives.add(path(alternative.strip()));
+                }
+                fields.put(key, List.copyOf(alternatives));
+            }
+            return new Mapping(List.copyOf(instances), Map.copyOf(fields));
+        }
+
+        private static List<Step> path(String expr) {
+            List<Step> steps = new ArrayList<>();
+            int i = 0;
+            while (i < expr.length()) {
+                char c = expr.charAt(i);
+                if (c == '.') {
+                    i++;
+                } else if (c == '[') {
+                    int close = expr.indexOf(']', i);
+                    if (close < 0) {
+                        throw new IllegalArgumentException("Unclosed '[' in " + expr);
+                    }
+                    String inner = expr.substring(i + 1, close).strip();
+                    int eq = inner.indexOf('=');
+                    if (inner.equals("*")) {
+                        steps.add(new Each());
+                    } else if (eq > 0) {
+                        steps.add(new Filter(inner.substring(0, eq).strip(), inner.substring(eq + 1).strip()));
+                    } else {
+                        try {
+                            steps.add(new Index(Integer.parseInt(inner)));
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Bad selector [" + inner + "] in " + expr);
+                        }
+                    }
+                    i = close + 1;
+                } else {
+                    int end = i;
+                    while (end < expr.length() && expr.charAt(end) != '.' && expr.charAt(end) != '[') {
+                        end++;
+                    }
+                    steps.add(new Key(expr.substring(i, end)));
+                    i = end;
+                }
+            }
+            return steps;
+        }
+
+        int apply(JsonParser parser, Consumer<Ec2Host> sink) throws IOException {
+            if (parser.currentToken() == null && parser.nextToken() == null) {
+                return 0;
+            }
+            int[] count = {0};
+            walk(parser, 0, instance -> {
+                Ec2Host host = toHost(instance);
+                if (host != null) {
+                    sink.accept(host);
+                    count[0]++;
+                }
+            });
+            return count[0];
+        }
+
+        /**
+         * Follows {@link #instances} from the value the parser is positioned on,
+         * skipping every subtree that is off the path. Recursion depth is bounded
+         * by the length of the path, not by the nesting of the document.
+         */
+        private void walk(JsonParser parser, int step, Consumer<JsonNode> sink) throws IOException {
+            JsonToken token = parser.currentToken();
+            if (step == instances.size()) {
+                if (token == JsonToken.START_OBJECT) {
+                    sink.accept(parser.readValueAsTree());
+                } else {
+                    parser.skipChildren();
+                }
+                return;
+            }
+
+            if (instances.get(step) instanceof Key key) {
+                if (token != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    return;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.currentName();
+                    parser.nextToken();
+                    if (name.equals(key.name())) {
+                        walk(parser, step + 1, sink);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                if (token != JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                    return;
+                }
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    walk(parser, step + 1, sink);
+                }
+            }
+        }
+
+        private Ec2Host toHost(JsonNode instance) {
+            String id = field(instance, "id");
+            String name = field(instance, "name");
+            String host = field(instance, "host");
+            if (id == null || name == null || host == null) {
+                return null;
+            }
+            String user = field(instance, "user");
+            return new Ec2Host(id, name, host, user == null ? DEFAULT_USER : user);
+        }
+
+        private String field(JsonNode instance, String key) {
+            for (List<Step> alternative : fields.get(key)) {
+                String value = evaluate(instance, alternative, 0);
+                if (value != null && !value.isBlank()) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        private static String evaluate(JsonNode node, List<Step> steps, int step) {
+            if (node == null || node.isMissingNode() || node.isNull()) {
+                return null;
+            }
+            if (step == steps.size()) {
+                return node.isValueNode() ? node.asText() : null;
+            }
+
+            Step current = steps.get(step);
+            if (current instanceof Key key) {
+                return evaluate(node.get(key.name()), steps, step + 1);
+            }
+            if (current instanceof Index index) {
+                return evaluate(node.get(index.index()), steps, step + 1);
+            }
+            if (!node.isArray()) {
+                return null;
+            }
+            for (JsonNode element : node) {
+                if (current instanceof Filter filter) {
+                    JsonNode candidate = element.get(filter.key());
+                    if (candidate == null || !filter.value().equals(candidate.asText())) {
+                        continue;
+                    }
+                }
+                String value = evaluate(element, steps, step + 1);
+                if (value != null && !value.isBlank()) {
+                    return value;
+                }
+            }
+            return null;
+        }
     }
 }
@@ -1,137 +1,1586 @@
-///usr/bin/env jbang "$0" "$@" ; exit $?
-//JAVA 21
-//DEPS org.apache.commons:commons-compress:1.26.2
-
-import java.io.*;
-import java.net.URI;
-import java.net.http.*;
-import java.nio.file.*;
-import java.util.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-
-public class GDown {
-
-	private static final int CHUNK_SIZE = 32768;
-	private static final String DOWNLOAD_URL = "https://docs.google.com/uc?export=download";
-
-	public static void main(String[] args) throws Exception {
-		if (args.length < 2) {
-			System.out
-				.println("Usage: jbang gdrive_download.java <fileId> <destPath> [--overwrite] [--unzip] [--showsize]");
-			return;
-		}
-
-		String fileId = args[0];
-		Path destPath = Paths.get(args[1]);
-
-		boolean overwrite = Arrays.asList(args).contains("--overwrite");
-		boolean unzip = Arrays.asList(args).contains("--unzip");
-		boolean showSize = Arrays.asList(args).contains("--showsize");
-
-		downloadFileFromGoogleDrive(fileId, destPath, overwrite, unzip, showSize);
-	}
-
-	static String sizeofFmt(long num) {
-		String[] units = { "", "Ki", "Mi", "Gi", "Ti", "Pi", "Ei", "Zi" };
-		double n = num;
-		for (String unit : units) {
-			if (Math.abs(n) < 1024.0) {
-				return String.format("%.1f %sB", n, unit);
-			}
-			n /= 1024.0;
-		}
-		return String.format("%.1f YiB", n);
-	}
-
-	static void saveResponseContent(InputStream input, Path destination, boolean showSize) throws IOException {
-		long currentSize = 0;
-		try (BufferedInputStream in = new BufferedInputStream(input);
-				OutputStream out = Files.newOutputStream(destination)) {
-
-			byte[] buffer = new byte[CHUNK_SIZE];
-			int bytesRead;
-
-			while ((bytesRead = in.read(buffer)) != -1) {
-				out.write(buffer, 0, bytesRead);
-				currentSize += bytesRead;
-
-				if (showSize) {
-					System.out.print("\r" + sizeofFmt(currentSize) + " ");
-					System.out.flush();
-				}
-			}
-		}
-	}
-
-	static void downloadFileFromGoogleDrive(
-			String fileId,
-			Path destPath,
-			boolean overwrite,
-			boolean unzip,
-			boolean showSize) throws Exception {
-
-		Path dir = destPath.getParent();
-		if (dir != null && !Files.exists(dir)) {
-			Files.createDirectories(dir);
-		}
-
-		if (Files.exists(destPath) && !overwrite) {
-			System.out.println("File exists, skipping download.");
-			return;
-		}
-
-		System.out.print("Downloading " + fileId + " into " + destPath + "... ");
-		System.out.flush();
-
-		HttpClient client = HttpClient.newBuilder()
-			.followRedirects(HttpClient.Redirect.ALWAYS)
-			.build();
-
-		String url = DOWNLOAD_URL + "&id=" + fileId + "&confirm=true";
-
-		HttpRequest request = HttpRequest.newBuilder()
-			.uri(URI.create(url))
-			.POST(HttpRequest.BodyPublishers.noBody())
-			.build();
-
-		HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
-
-		if (showSize)
-			System.out.println();
-
-		saveResponseContent(response.body(), destPath, showSize);
-
-		System.out.println("Done.");
-
-		if (unzip) {
-			try {
-				System.out.print("Unzipping...");
-				unzipFile(destPath, dir != null ? dir : Paths.get("."));
-				System.out.println("Done.");
-			} catch (Exception e) {
-				System.err.println("Ignoring unzip: not a valid zip file.");
-			}
-		}
-	}
-
-	static void unzipFile(Path zipPath, Path targetDir) throws IOException {
-		try (ZipInputStream zis = new ZipInputStream(Files.newInputStream(zipPath))) {
-			ZipEntry entry;
-			while ((entry = zis.getNextEntry()) != null) {
-				Path newPath = targetDir.resolve(entry.getName()).normalize();
-				if (entry.isDirectory()) {
-					Files.createDirectories(newPath);
-				} else {
-					Files.createDirectories(newPath.getParent());
-					try (OutputStream out = Files.newOutputStream(newPath)) {
-						zis.transferTo(out);
-					}
-				}
-				zis.closeEntry();
-			}
-		}
-	}
-
-}
-
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 21
+//DEPS org.apache.commons:commons-compress:1.26.2
+//DEPS org.tukaani:xz:1.9
+//DEPS com.github.luben:zstd-jni:1.5.6-3
+//DEPS com.fasterxml.jackson.core:jackson-databind:2.17.0
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+public class GDown {
+
+	private static final int CHUNK_SIZE = 256 * 1024;
+	private static final long MIN_RANGE_SIZE = 1024 * 1024;
+	private static final long BUFFERED_ENTRY_SIZE = 1024 * 1024;
+	private static final Set<String> COMPRESSORS = Set.of(
+			CompressorStreamFactory.GZIP,
+			CompressorStreamFactory.BZIP2,
+			CompressorStreamFactory.XZ,
+			CompressorStreamFactory.ZSTANDARD);
+	private static final String DOWNLOAD_URL = "https://docs.google.com/uc?export=download";
+
+	/** Overridable with {@code -Dgdown.url=...} to point the full flow at a local stand-in. */
+	static String downloadUrl = System.getProperty("gdown.url", DOWNLOAD_URL);
+
+	static class Options implements Cloneable {
+		boolean overwrite;
+		boolean extract;
+		Progress.Mode progress = Progress.Mode.NONE;
+		long progressIntervalMs = 500;
+		int bufferSize = CHUNK_SIZE;
+		int connections = 1;
+		int workers = Runtime.getRuntime().availableProcessors();
+		boolean stream;
+		boolean keepArchive = true;
+		boolean quiet;
+		DownloadCache cache;
+		Checksum checksum;
+
+		Options copy() {
+			try {
+				return (Options) clone();
+			} catch (CloneNotSupportedException e) {
+				throw new AssertionError(e);
+			}
+		}
+	}
+
+	record ManifestItem(String fileId, Path destPath, Checksum checksum) {
+	}
+
+	record Checksum(String algorithm, String expected) {
+
+		/** Parses {@code sha256:<hex>} or {@code md5:<hex>}. */
+		static Checksum parse(String spec) {
+			int colon = spec.indexOf(':');
+			String kind = colon < 0 ? "" : spec.substring(0, colon).trim().toLowerCase();
+			String hex = spec.substring(colon + 1).trim();
+			return switch (kind) {
+				case "sha256" -> new Checksum("SHA-256", hex);
+				case "md5" -> new Checksum("MD5", hex);
+				default -> throw new IllegalArgumentException("Unknown checksum '" + spec + "', expected sha256:<hex> or md5:<hex>");
+			};
+		}
+
+		MessageDigest newDigest() {
+			try {
+				return MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void verify(MessageDigest digest, Path file) throws ChecksumMismatchException {
+			String actual = HexFormat.of().formatHex(digest.digest());
+			if (!actual.equalsIgnoreCase(expected))
+				throw new ChecksumMismatchException(file + ": " + algorithm + " is " + actual + ", expected " + expected);
+		}
+
+		boolean matches(Path file) throws IOException {
+			MessageDigest digest = newDigest();
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				hashChannel(channel, 0, channel.size(), digest);
+			}
+			return HexFormat.of().formatHex(digest.digest()).equalsIgnoreCase(expected);
+		}
+	}
+
+	static class ChecksumMismatchException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ChecksumMismatchException(String message) {
+			super(message);
+		}
+	}
+
+	record Validator(String etag, String lastModified, long length) {
+
+		/** Reads the validator off a response, ranged or not, without touching its body. */
+		static Validator of(HttpResponse<?> response) {
+			long length = rangeLength(response);
+			if (length < 0)
+				length = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+
+			return new Validator(
+					response.headers().firstValue("ETag").orElse(null),
+					response.headers().firstValue("Last-Modified").orElse(null),
+					length);
+		}
+
+		/**
+		 * Returns the cache key for this version of a file, or null when the server sent
+		 * nothing that tells versions apart.
+		 */
+		String cacheKey(String fileId) {
+			if (etag == null && lastModified == null)
+				return null;
+			return sha256Hex(fileId + "\n" + etag + "\n" + lastModified + "\n" + length);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String manifest = optionValue(args, "--manifest", null);
+
+		if (args.length < 2 && manifest == null) {
+			System.out
+				.println("Usage: jbang gdrive_download.java (<fileId> <destPath> [--sha256 HEX|--md5 HEX]"
+						+ " | --manifest <file.tsv|file.json> [--concurrency N]) [--overwrite] [--extract|--unzip]"
+						+ " [--showsize|--progress=text|json] [--progress-interval MS] [--buffer-size SIZE]"
+						+ " [--connections N] [--workers N] [--stream [--no-archive]] [--cache-dir DIR [--cache-size SIZE] [--cache-link]]");
+			return;
+		}
+
+		Options opts = new Options();
+		opts.overwrite = Arrays.asList(args).contains("--overwrite");
+		opts.extract = Arrays.asList(args).contains("--extract") || Arrays.asList(args).contains("--unzip");
+		if (Arrays.asList(args).contains("--showsize"))
+			opts.progress = Progress.Mode.TEXT;
+		opts.progress = Progress.Mode.valueOf(
+				optionValue(args, "--progress", opts.progress.name()).toUpperCase());
+		opts.progressIntervalMs = Long.parseLong(optionValue(args, "--progress-interval", "500"));
+		opts.bufferSize = (int) parseSize(optionValue(args, "--buffer-size", Integer.toString(CHUNK_SIZE)));
+		// keep stdout parseable: only progress events are printed there
+		opts.quiet = opts.progress == Progress.Mode.JSON;
+		opts.connections = Integer.parseInt(optionValue(args, "--connections", "1"));
+		opts.workers = Integer.parseInt(optionValue(args, "--workers", Integer.toString(opts.workers)));
+		opts.stream = Arrays.asList(args).contains("--stream");
+		opts.keepArchive = !Arrays.asList(args).contains("--no-archive");
+
+		String sha256 = optionValue(args, "--sha256", null);
+		String md5 = optionValue(args, "--md5", null);
+		if (sha256 != null)
+			opts.checksum = new Checksum("SHA-256", sha256);
+		else if (md5 != null)
+			opts.checksum = new Checksum("MD5", md5);
+
+		String cacheDir = optionValue(args, "--cache-dir", null);
+		if (cacheDir != null) {
+			opts.cache = new DownloadCache(
+					Paths.get(cacheDir),
+					parseSize(optionValue(args, "--cache-size", "10G")),
+					Arrays.asList(args).contains("--cache-link"));
+		}
+
+		if (opts.connections < 1) {
+			System.err.println("--connections must be at least 1");
+			System.exit(1);
+		}
+
+		if (manifest != null) {
+			int concurrency = Integer.parseInt(optionValue(args, "--concurrency", "4"));
+			if (concurrency < 1) {
+				System.err.println("--concurrency must be at least 1");
+				System.exit(1);
+			}
+			if (!runManifest(Paths.get(manifest), concurrency, opts))
+				System.exit(1);
+			return;
+		}
+
+		String fileId = args[0];
+		Path destPath = Paths.get(args[1]);
+
+		try {
+			downloadFileFromGoogleDrive(newClient(), fileId, destPath, opts);
+		} catch (ChecksumMismatchException e) {
+			System.out.println();
+			System.err.println("Checksum mismatch: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Downloads every manifest item in this process, each on its own virtual thread
+	 * with at most {@code concurrency} in flight, all sharing one HTTP/2-capable
+	 * client. Prints one line per item and a summary, to stderr when stdout carries
+	 * JSON progress; returns false if any failed.
+	 */
+	static boolean runManifest(Path manifest, int concurrency, Options opts) throws Exception {
+		List<ManifestItem> items = readManifest(manifest);
+
+		opts.quiet = true;
+		if (opts.progress == Progress.Mode.TEXT)
+			opts.progress = Progress.Mode.NONE;
+
+		PrintStream report = opts.progress == Progress.Mode.JSON ? System.err : System.out;
+		HttpClient client = newClient();
+		Semaphore permits = new Semaphore(Math.max(1, concurrency));
+		AtomicInteger ok = new AtomicInteger();
+		AtomicInteger skipped = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		AtomicLong bytes = new AtomicLong();
+
+		long start = System.nanoTime();
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (ManifestItem item : items) {
+				executor.submit(() -> {
+					permits.acquireUninterruptibly();
+					long itemStart = System.nanoTime();
+					try {
+						Options itemOpts = opts.copy();
+						if (item.checksum() != null)
+							itemOpts.checksum = item.checksum();
+
+						long size = downloadFileFromGoogleDrive(client, item.fileId(), item.destPath(), itemOpts);
+						if (size < 0) {
+							skipped.incrementAndGet();
+							report.println("SKIP " + item.fileId() + " -> " + item.destPath() + " (exists)");
+						} else {
+							ok.incrementAndGet();
+							bytes.addAndGet(size);
+							report.println("OK   " + item.fileId() + " -> " + item.destPath()
+									+ " (" + sizeofFmt(size) + " in " + secondsSince(itemStart) + "s)");
+						}
+					} catch (Exception e) {
+						failed.incrementAndGet();
+						System.err.println("FAIL " + item.fileId() + " -> " + item.destPath() + ": " + e);
+					} finally {
+						permits.release();
+					}
+				});
+			}
+		}
+
+		double seconds = Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+		report.printf("%d ok, %d skipped, %d failed; %s in %.1fs (%s/s)%n",
+				ok.get(), skipped.get(), failed.get(),
+				sizeofFmt(bytes.get()), seconds, sizeofFmt((long) (bytes.get() / seconds)));
+
+		return failed.get() == 0;
+	}
+
+	static String secondsSince(long startNanos) {
+		return String.format("%.1f", (System.nanoTime() - startNanos) / 1e9);
+	}
+
+	/**
+	 * Reads a manifest: either tab-separated {@code fileId<TAB>destPath[<TAB>sha256:hex]}
+	 * lines (blank lines and {@code #} comments ignored) or, for {@code .json}, an array
+	 * of {@code {"fileId": ..., "destPath": ..., "sha256"|"md5": ...}} objects.
+	 */
+	static List<ManifestItem> readManifest(Path manifest) throws IOException {
+		List<ManifestItem> items = new ArrayList<>();
+
+		if (manifest.getFileName().toString().toLowerCase().endsWith(".json")) {
+			JsonNode root = new ObjectMapper().readTree(manifest.toFile());
+			for (JsonNode node : root) {
+				String fileId = node.path("fileId").asText();
+				String destPath = node.path("destPath").asText();
+				if (fileId.isBlank() || destPath.isBlank())
+					throw new IOException(manifest + ": entry without fileId/destPath: " + node);
+
+				Checksum checksum = null;
+				if (node.hasNonNull("sha256"))
+					checksum = new Checksum("SHA-256", node.get("sha256").asText());
+				else if (node.hasNonNull("md5"))
+					checksum = new Checksum("MD5", node.get("md5").asText());
+
+				items.add(new ManifestItem(fileId, Paths.get(destPath), checksum));
+			}
+			return items;
+		}
+
+		int lineNo = 0;
+		for (String line : Files.readAllLines(manifest)) {
+			lineNo++;
+			if (line.isBlank() || line.startsWith("#"))
+				continue;
+			String[] columns = line.split("\t");
+			if (columns.length < 2 || columns[0].isBlank() || columns[1].isBlank())
+				throw new IOException(manifest + ":" + lineNo + ": expected <fileId><TAB><destPath>");
+
+			Checksum checksum = null;
+			if (columns.length > 2 && !columns[2].isBlank()) {
+				try {
+					checksum = Checksum.parse(columns[2]);
+				} catch (IllegalArgumentException e) {
+					throw new IOException(manifest + ":" + lineNo + ": " + e.getMessage());
+				}
+			}
+
+			items.add(new ManifestItem(columns[0].trim(), Paths.get(columns[1].trim()), checksum));
+		}
+		return items;
+	}
+
+	/**
+	 * Returns the value of an option given either as {@code --name value} or
+	 * {@code --name=value}, or the default when it is absent.
+	 */
+	static String optionValue(String[] args, String name, String defaultValue) {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals(name) && i + 1 < args.length)
+				return args[i + 1];
+			if (args[i].startsWith(name + "="))
+				return args[i].substring(name.length() + 1);
+		}
+		return defaultValue;
+	}
+
+	/** Parses a byte count with an optional binary K, M, G or T suffix. */
+	static long parseSize(String text) {
+		String value = text.trim().toUpperCase();
+		int shift = switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+			case 'K' -> 10;
+			case 'M' -> 20;
+			case 'G' -> 30;
+			case 'T' -> 40;
+			default -> 0;
+		};
+		if (shift > 0)
+			value = value.substring(0, value.length() - 1);
+		return Long.parseLong(value.trim()) << shift;
+	}
+
+	static String sha256Hex(String text) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String sizeofFmt(long num) {
+		String[] units = { "", "Ki", "Mi", "Gi", "Ti", "Pi", "Ei", "Zi" };
+		double n = num;
+		for (String unit : units) {
+			if (Math.abs(n) < 1024.0) {
+				return String.format("%.1f %sB", n, unit);
+			}
+			n /= 1024.0;
+		}
+		return String.format("%.1f YiB", n);
+	}
+
+	/**
+	 * Copies {@code input} into {@code destination}, reading up to {@code bufferSize}
+	 * bytes at a time and hashing each chunk before it is written when a digest is
+	 * given. Closes {@code input}.
+	 */
+	static long saveResponseContent(
+			InputStream input,
+			Path destination,
+			Progress progress,
+			MessageDigest digest,
+			int bufferSize) throws IOException {
+
+		long position = 0;
+		try (InputStream in = input;
+				FileChannel out = FileChannel.open(destination,
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			byte[] buffer = new byte[bufferSize];
+			int bytesRead;
+			while ((bytesRead = in.read(buffer)) != -1) {
+				if (digest != null)
+					digest.update(buffer, 0, bytesRead);
+				ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, bytesRead);
+				while (chunk.hasRemaining())
+					out.write(chunk);
+
+				position += bytesRead;
+				progress.add(bytesRead);
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Hands the body to {@code delegate} unchanged and counts every buffer into
+	 * {@code progress} on the way, for bodies the HTTP client writes itself.
+	 */
+	static class CountingSubscriber<T> implements HttpResponse.BodySubscriber<T> {
+
+		private final HttpResponse.BodySubscriber<T> delegate;
+		private final Progress progress;
+
+		CountingSubscriber(HttpResponse.BodySubscriber<T> delegate, Progress progress) {
+			this.delegate = delegate;
+			this.progress = progress;
+		}
+
+		@Override
+		public CompletionStage<T> getBody() {
+			return delegate.getBody();
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			delegate.onSubscribe(subscription);
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> item) {
+			long n = 0;
+			for (ByteBuffer buffer : item)
+				n += buffer.remaining();
+			delegate.onNext(item);
+			progress.add(n);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			delegate.onError(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			delegate.onComplete();
+		}
+	}
+
+	/**
+	 * Byte counter shared by every write path. Updates are printed at most once per
+	 * interval, either as the classic {@code \r}-rewritten size or, with
+	 * {@code --progress=json}, as one JSON object per line carrying bytes, total,
+	 * MB/s, ETA and time to first byte.
+	 */
+	static class Progress {
+
+		enum Mode {
+			NONE, TEXT, JSON
+		}
+
+		private final Mode mode;
+		private final String label;
+		private final long intervalNanos;
+		private final long startNanos = System.nanoTime();
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong nextPrintNanos = new AtomicLong();
+		private volatile long firstByteNanos;
+		private volatile long total = -1;
+		private volatile long offset;
+
+		Progress(Options opts, String label) {
+			this.mode = opts.progress;
+			this.label = label;
+			this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(opts.progressIntervalMs);
+			this.nextPrintNanos.set(startNanos + intervalNanos);
+		}
+
+		/** Sets the expected total and how much of it was already on disk. */
+		void expect(long total, long offset) {
+			this.total = total;
+			this.offset = offset;
+		}
+
+		void add(long n) {
+			if (firstByteNanos == 0)
+				firstByteNanos = System.nanoTime();
+			bytes.addAndGet(n);
+
+			if (mode == Mode.NONE)
+				return;
+			long now = System.nanoTime();
+			long next = nextPrintNanos.get();
+			if (now >= next && nextPrintNanos.compareAndSet(next, now + intervalNanos))
+				print("progress", now);
+		}
+
+		void finish() {
+			if (mode != Mode.NONE)
+				print("done", System.nanoTime());
+		}
+
+		long transferred() {
+			return bytes.get();
+		}
+
+		private synchronized void print(String event, long now) {
+			long transferred = bytes.get();
+			long done = offset + transferred;
+			long firstByte = firstByteNanos;
+			double seconds = firstByte == 0 ? 0 : (now - firstByte) / 1e9;
+			double bytesPerSecond = seconds >= 0.01 ? transferred / seconds : 0;
+			double eta = total > 0 && bytesPerSecond > 0 ? (total - done) / bytesPerSecond : -1;
+			double ttfbMs = firstByte == 0 ? -1 : (firstByte - startNanos) / 1e6;
+
+			if (mode == Mode.JSON) {
+				System.out.println(String.format(Locale.ROOT,
+						"{\"event\":\"%s\",\"file\":\"%s\",\"bytes\":%d,\"total\":%d,"
+								+ "\"mbps\":%.2f,\"etaSeconds\":%.1f,\"ttfbMs\":%.1f}",
+						event, label.replace("\\", "\\\\").replace("\"", "\\\""),
+						done, total, bytesPerSecond / 1e6, eta, ttfbMs));
+			} else {
+				System.out.print("\r" + sizeofFmt(done)
+						+ (total > 0 ? " / " + sizeofFmt(total) : "")
+						+ String.format(Locale.ROOT, " %.1f MB/s ", bytesPerSecond / 1e6));
+				System.out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes transferred (the file size for a cache hit), or -1
+	 * if the file already existed and was skipped.
+	 */
+	static long downloadFileFromGoogleDrive(HttpClient client, String fileId, Path destPath, Options opts)
+			throws Exception {
+
+		Path dir = destPath.getParent();
+		if (dir != null && !Files.exists(dir)) {
+			Files.createDirectories(dir);
+		}
+
+		boolean streamExtract = opts.extract && opts.stream;
+		Path targetDir = dir != null ? dir : Paths.get(".");
+
+		if (Files.exists(destPath) && !opts.overwrite && !(streamExtract && !opts.keepArchive)) {
+			if (opts.checksum == null || opts.checksum.matches(destPath)) {
+				if (!opts.quiet)
+					System.out.println(opts.checksum == null
+							? "File exists, skipping download."
+							: "File exists and its checksum matches, skipping download.");
+				return -1;
+			}
+			if (!opts.quiet)
+				System.out.println("File exists but its checksum does not match, downloading again.");
+		}
+
+		URI uri = URI.create(downloadUrl + "&id=" + fileId + "&confirm=true");
+
+		// with a cache, the first response of the download itself supplies the validator
+		String cacheKey = null;
+		HttpResponse<InputStream> first = null;
+		if (opts.cache != null && (!streamExtract || opts.keepArchive)) {
+			first = client.send(
+					streamExtract ? newRequest(uri, null, null) : newRequest(uri, "bytes=0-0", null),
+					HttpResponse.BodyHandlers.ofInputStream());
+			cacheKey = Validator.of(first).cacheKey(fileId);
+			if (cacheKey != null && opts.cache.fetch(cacheKey, destPath)) {
+				if (opts.checksum == null || opts.checksum.matches(destPath)) {
+					first.body().close();
+					if (!opts.quiet)
+						System.out.println("Copied " + fileId + " into " + destPath + " from cache.");
+					if (opts.extract)
+						extractDownloaded(destPath, targetDir, opts);
+					return Files.size(destPath);
+				}
+				Files.delete(destPath);
+				System.err.println("Cached copy of " + fileId + " fails its checksum, downloading again.");
+			}
+		}
+
+		long size;
+		if (streamExtract) {
+			if (!opts.quiet) {
+				System.out.print("Downloading " + fileId + " and extracting into " + targetDir + "... ");
+				System.out.flush();
+			}
+
+			size = streamExtract(client, uri, first, opts.keepArchive ? destPath : null, targetDir, opts);
+
+			if (!opts.quiet)
+				System.out.println("Done.");
+		} else {
+			if (!opts.quiet) {
+				System.out.print("Downloading " + fileId + " into " + destPath + "... ");
+				System.out.flush();
+			}
+
+			size = download(client, uri, first, destPath, opts);
+
+			if (!opts.quiet)
+				System.out.println("Done.");
+
+			if (opts.extract)
+				extractDownloaded(destPath, targetDir, opts);
+		}
+
+		if (cacheKey != null)
+			opts.cache.store(cacheKey, destPath);
+		return size;
+	}
+
+	static void extractDownloaded(Path archive, Path targetDir, Options opts) {
+		try {
+			if (!opts.quiet)
+				System.out.print("Extracting...");
+			extractArchive(archive, targetDir, opts.workers);
+			if (!opts.quiet)
+				System.out.println("Done.");
+		} catch (Exception e) {
+			System.err.println("Ignoring extract of " + archive + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Local store of downloaded files keyed by file ID and server validator, shared
+	 * between processes through a lock file. Entries are placed by reflink where the
+	 * filesystem supports it, otherwise copied (or hard-linked with
+	 * {@code --cache-link}), and the least recently used ones are evicted to keep the
+	 * store within its byte budget.
+	 */
+	static class DownloadCache {
+
+		private static final ReentrantLock LOCAL_LOCK = new ReentrantLock();
+
+		interface Locked<T> {
+			T run() throws IOException;
+		}
+
+		final Path dir;
+		final long budget;
+		final boolean hardLinks;
+
+		DownloadCache(Path dir, long budget, boolean hardLinks) {
+			this.dir = dir;
+			this.budget = budget;
+			this.hardLinks = hardLinks;
+		}
+
+		/** Places the cached entry at {@code destPath}; returns false on a miss. */
+		boolean fetch(String key, Path destPath) throws IOException {
+			return locked(() -> {
+				Path entry = objects().resolve(key);
+				if (!Files.exists(entry))
+					return false;
+
+				Path part = siblingPath(destPath, ".part");
+				Files.deleteIfExists(part);
+				place(entry, part, hardLinks);
+				moveIntoPlace(part, destPath);
+
+				Properties index = readIndex();
+				index.setProperty(key, Long.toString(System.currentTimeMillis()));
+				writeIndex(index);
+				return true;
+			});
+		}
+
+		/**
+		 * Adds {@code source} under {@code key}. The copy is made outside the lock; only
+		 * the rename, index update and eviction are serialised.
+		 */
+		void store(String key, Path source) throws IOException {
+			if (Files.size(source) > budget)
+				return;
+
+			Files.createDirectories(objects());
+			Path tmp = objects().resolve(key + ".tmp-" + ProcessHandle.current().pid() + "-"
+					+ Thread.currentThread().threadId());
+			try {
+				Files.deleteIfExists(tmp);
+				place(source, tmp, hardLinks);
+				locked(() -> {
+					moveIntoPlace(tmp, objects().resolve(key));
+					Properties index = readIndex();
+					index.setProperty(key, Long.toString(System.currentTimeMillis()));
+					evict(index, key);
+					writeIndex(index);
+					return null;
+				});
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		}
+
+		private void evict(Properties index, String keep) throws IOException {
+			List<Path> entries;
+			try (Stream<Path> files = Files.list(objects())) {
+				entries = new ArrayList<>(files
+					.filter(p -> !p.getFileName().toString().contains(".tmp-"))
+					.toList());
+			}
+
+			Map<Path, Long> lastUsed = new HashMap<>();
+			long total = 0;
+			for (Path entry : entries) {
+				String used = index.getProperty(entry.getFileName().toString());
+				lastUsed.put(entry, used != null ? Long.parseLong(used) : Files.getLastModifiedTime(entry).toMillis());
+				total += Files.size(entry);
+			}
+
+			entries.sort(Comparator.comparing(lastUsed::get));
+			for (Path entry : entries) {
+				if (total <= budget)
+					break;
+				String name = entry.getFileName().toString();
+				if (name.equals(keep))
+					continue;
+				total -= Files.size(entry);
+				Files.deleteIfExists(entry);
+				index.remove(name);
+			}
+
+			index.keySet().removeIf(name -> !Files.exists(objects().resolve(name.toString())));
+		}
+
+		private Path objects() {
+			return dir.resolve("objects");
+		}
+
+		private Properties readIndex() throws IOException {
+			Properties index = new Properties();
+			Path file = dir.resolve("index.properties");
+			if (Files.exists(file)) {
+				try (Reader in = Files.newBufferedReader(file)) {
+					index.load(in);
+				}
+			}
+			return index;
+		}
+
+		private void writeIndex(Properties index) throws IOException {
+			Path tmp = dir.resolve("index.properties.tmp");
+			try (Writer out = Files.newBufferedWriter(tmp)) {
+				index.store(out, "GDown cache: entry -> last used (epoch ms)");
+			}
+			moveIntoPlace(tmp, dir.resolve("index.properties"));
+		}
+
+		/**
+		 * Runs {@code action} holding both the in-process lock (file locks are per JVM)
+		 * and the lock file shared with other GDown processes.
+		 */
+		private <T> T locked(Locked<T> action) throws IOException {
+			Files.createDirectories(dir);
+			LOCAL_LOCK.lock();
+			try (FileChannel channel = FileChannel.open(dir.resolve(".lock"),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				FileLock lock = channel.lock();
+				try {
+					return action.run();
+				} finally {
+					lock.release();
+				}
+			} finally {
+				LOCAL_LOCK.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Materialises {@code source} at {@code target}: as a reflink if the filesystem can
+	 * clone, else as a hard link if allowed, else as a plain copy.
+	 */
+	static void place(Path source, Path target, boolean hardLinks) throws IOException {
+		if (reflink(source, target))
+			return;
+		if (hardLinks) {
+			try {
+				Files.createLink(target, source);
+				return;
+			} catch (IOException | UnsupportedOperationException e) {
+				// different filesystem or no link support; copy instead
+			}
+		}
+		Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	static boolean reflink(Path source, Path target) {
+		String os = System.getProperty("os.name").toLowerCase();
+		List<String> command;
+		if (os.contains("linux"))
+			command = List.of("cp", "--reflink=always", source.toString(), target.toString());
+		else if (os.contains("mac"))
+			command = List.of("cp", "-c", source.toString(), target.toString());
+		else
+			return false;
+
+		try {
+			Process process = new ProcessBuilder(command)
+				.redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+				.start();
+			if (process.waitFor() == 0)
+				return true;
+			Files.deleteIfExists(target);
+		} catch (IOException e) {
+			// no cp on the path; fall back
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/**
+	 * Extracts the response body while it is still arriving. The bytes read by the
+	 * extractor are teed into {@code archivePath} (through a {@code .part} file) unless
+	 * it is null, so the archive is written once and never read back. Ranges and
+	 * resume do not apply here: the body is consumed strictly in order. {@code sent}, if
+	 * not null, is a response for the plain GET that has not been read yet.
+	 */
+	static long streamExtract(
+			HttpClient client,
+			URI uri,
+			HttpResponse<InputStream> sent,
+			Path archivePath,
+			Path targetDir,
+			Options opts) throws Exception {
+
+		Progress progress = new Progress(opts, (archivePath != null ? archivePath : targetDir).toString());
+		HttpResponse<InputStream> response = sent != null ? sent
+				: client.send(newRequest(uri, null, null), HttpResponse.BodyHandlers.ofInputStream());
+		progress.expect(response.headers().firstValueAsLong("Content-Length").orElse(-1), 0);
+
+		if (opts.progress == Progress.Mode.TEXT)
+			System.out.println();
+
+		Path part = archivePath != null ? siblingPath(archivePath, ".part") : null;
+		MessageDigest digest = opts.checksum != null ? opts.checksum.newDigest() : null;
+		long size;
+		try (OutputStream copy = part != null ? Files.newOutputStream(part) : OutputStream.nullOutputStream();
+				TeeInputStream tee = new TeeInputStream(response.body(), copy, digest, progress)) {
+
+			InputStream shield = new FilterInputStream(tee) {
+				@Override
+				public void close() {
+					// the tee still has to be drained below
+				}
+			};
+			try {
+				extractStream(shield, targetDir, opts.workers);
+			} catch (IOException e) {
+				if (part == null)
+					throw e;
+				System.err.println("Ignoring extract: " + e.getMessage());
+			}
+
+			// trailing bytes (zip central directory, compressor trailers) belong to the archive copy
+			tee.transferTo(OutputStream.nullOutputStream());
+			size = progress.transferred();
+			progress.finish();
+		}
+
+		if (digest != null) {
+			try {
+				opts.checksum.verify(digest, archivePath != null ? archivePath : targetDir);
+			} catch (ChecksumMismatchException e) {
+				if (part != null)
+					Files.deleteIfExists(part);
+				throw e;
+			}
+		}
+
+		if (part != null)
+			moveIntoPlace(part, archivePath);
+		return size;
+	}
+
+	/**
+	 * Passes everything read through to a copy, so one pass over the body feeds both
+	 * the extractor and the archive file.
+	 */
+	static class TeeInputStream extends FilterInputStream {
+
+		private final OutputStream copy;
+		private final MessageDigest digest;
+		private final Progress progress;
+
+		TeeInputStream(InputStream in, OutputStream copy, MessageDigest digest, Progress progress) {
+			super(in);
+			this.copy = copy;
+			this.digest = digest;
+			this.progress = progress;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				copy.write(b);
+				if (digest != null)
+					digest.update((byte) b);
+				progress.add(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int bytesRead = super.read(b, off, len);
+			if (bytesRead > 0) {
+				copy.write(b, off, bytesRead);
+				if (digest != null)
+					digest.update(b, off, bytesRead);
+				progress.add(bytesRead);
+			}
+			return bytesRead;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] buffer = new byte[(int) Math.min(n, CHUNK_SIZE)];
+			int bytesRead = read(buffer, 0, buffer.length);
+			return Math.max(0, bytesRead);
+		}
+	}
+
+	static HttpClient newClient() {
+		return HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_2)
+			.followRedirects(HttpClient.Redirect.ALWAYS)
+			.build();
+	}
+
+	static HttpRequest newRequest(URI uri, String range, String ifRange) {
+		HttpRequest.Builder builder = HttpRequest.newBuilder()
+			.uri(uri)
+			.POST(HttpRequest.BodyPublishers.noBody());
+		if (range != null)
+			builder.header("Range", range);
+		if (ifRange != null)
+			builder.header("If-Range", ifRange);
+		return builder.build();
+	}
+
+	/**
+	 * Downloads {@code uri} into {@code destPath} by way of a {@code .part} file that is
+	 * renamed into place once complete. The server is probed with a one-byte range
+	 * request: a {@code 206} answer carries the full length in {@code Content-Range}
+	 * and switches to ranged fetches recorded in a sidecar journal, so a rerun only
+	 * requests what is still missing. Anything else is treated as the plain body:
+	 * without a checksum to compute, the probe itself is answered with
+	 * {@link HttpResponse.BodySubscribers#ofFile} so the client writes it straight to
+	 * the {@code .part} file; otherwise it is copied through
+	 * {@link #saveResponseContent}. A {@code probe} already sent by the caller is used
+	 * in place of a new one. Returns the number of bytes transferred.
+	 */
+	static long download(HttpClient client, URI uri, HttpResponse<InputStream> probe, Path destPath, Options opts)
+			throws Exception {
+		Path part = siblingPath(destPath, ".part");
+		Journal journal = new Journal(siblingPath(destPath, ".part.journal"));
+
+		if (opts.overwrite) {
+			Files.deleteIfExists(part);
+			Files.deleteIfExists(journal.file);
+		} else if (Files.exists(part)) {
+			journal.load();
+		}
+
+		Progress progress = new Progress(opts, destPath.toString());
+		MessageDigest digest = opts.checksum != null ? opts.checksum.newDigest() : null;
+		if (opts.progress == Progress.Mode.TEXT)
+			System.out.println();
+
+		// a plain body with nothing to hash is written by the client while send() runs
+		boolean writtenByClient = probe == null && digest == null;
+		HttpResponse<InputStream> response = probe != null ? probe
+				: client.send(newRequest(uri, "bytes=0-0", null), info -> {
+					if (!writtenByClient || rangeLength(info.statusCode(), info.headers()) > 0)
+						return HttpResponse.BodySubscribers.ofInputStream();
+					progress.expect(info.headers().firstValueAsLong("Content-Length").orElse(-1), 0);
+					return HttpResponse.BodySubscribers.mapping(
+							new CountingSubscriber<>(HttpResponse.BodySubscribers.ofFile(part,
+									StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+									StandardOpenOption.TRUNCATE_EXISTING), progress),
+							path -> InputStream.nullInputStream());
+				});
+
+		long length = rangeLength(response);
+		long size;
+		if (length > 0) {
+			response.body().close();
+
+			String etag = response.headers().firstValue("ETag").orElse(null);
+			String lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+			if (!journal.matches(etag, lastModified, length))
+				journal.reset(etag, lastModified, length);
+
+			size = downloadRanges(client, uri, part, journal, opts, progress, digest);
+		} else {
+			Files.deleteIfExists(journal.file);
+			if (writtenByClient) {
+				size = Files.size(part);
+			} else {
+				progress.expect(response.headers().firstValueAsLong("Content-Length").orElse(-1), 0);
+				size = saveResponseContent(response.body(), part, progress, digest, opts.bufferSize);
+			}
+		}
+		progress.finish();
+
+		if (digest != null) {
+			try {
+				opts.checksum.verify(digest, destPath);
+			} catch (ChecksumMismatchException e) {
+				Files.deleteIfExists(part);
+				Files.deleteIfExists(journal.file);
+				throw e;
+			}
+		}
+
+		moveIntoPlace(part, destPath);
+		Files.deleteIfExists(journal.file);
+		return size;
+	}
+
+	static Path siblingPath(Path path, String suffix) {
+		return path.resolveSibling(path.getFileName() + suffix);
+	}
+
+	static void moveIntoPlace(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Returns the total length announced by a range probe, or -1 when the server
+	 * ignored the range or does not accept byte ranges.
+	 */
+	static long rangeLength(HttpResponse<?> response) {
+		return rangeLength(response.statusCode(), response.headers());
+	}
+
+	static long rangeLength(int statusCode, HttpHeaders headers) {
+		if (statusCode != 206)
+			return -1;
+		if (headers.firstValue("Accept-Ranges").map("none"::equalsIgnoreCase).orElse(false))
+			return -1;
+
+		String contentRange = headers.firstValue("Content-Range").orElse("");
+		int slash = contentRange.lastIndexOf('/');
+		if (!contentRange.startsWith("bytes ") || slash < 0)
+			return -1;
+		try {
+			return Long.parseLong(contentRange.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Preallocates {@code part} to the journal's length and fetches every range the
+	 * journal does not yet record, on up to {@code connections} concurrent requests
+	 * that each write at their own offset through the shared channel. Returns the
+	 * number of bytes fetched by this run.
+	 * <p>
+	 * A {@code digest} is fed inline when a single range runs to the end of the file,
+	 * after catching up on the prefix already on disk. Parallel or gappy fetches arrive
+	 * out of order, so then the finished file is hashed once instead.
+	 */
+	static long downloadRanges(
+			HttpClient client,
+			URI uri,
+			Path part,
+			Journal journal,
+			Options opts,
+			Progress progress,
+			MessageDigest digest) throws Exception {
+
+		List<long[]> ranges = splitRanges(journal.missing(), opts.connections);
+		boolean inlineDigest = digest != null && ranges.size() == 1 && ranges.get(0)[1] == journal.length - 1;
+		progress.expect(journal.length, journal.length - journal.remaining());
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(opts.connections, ranges.size())));
+		// fetchers stop at their next read; interrupting them would close the shared channel
+		AtomicBoolean cancelled = new AtomicBoolean();
+		try (RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw")) {
+			file.setLength(journal.length);
+			FileChannel channel = file.getChannel();
+
+			try {
+				if (inlineDigest)
+					hashChannel(channel, 0, ranges.get(0)[0], digest);
+
+				List<Future<?>> futures = new ArrayList<>();
+				for (long[] range : ranges) {
+					futures.add(pool.submit(() -> {
+						fetchRange(client, uri, channel, range[0], range[1], journal, progress,
+								inlineDigest ? digest : null, opts.bufferSize, cancelled);
+						return null;
+					}));
+				}
+
+				Exception failure = null;
+				for (Future<?> future : futures) {
+					try {
+						future.get();
+					} catch (ExecutionException e) {
+						if (failure == null) {
+							cancelled.set(true);
+							failure = e.getCause() instanceof Exception cause ? cause : e;
+						}
+					}
+				}
+				if (failure != null)
+					throw failure;
+
+				if (digest != null && !inlineDigest)
+					hashChannel(channel, 0, journal.length, digest);
+			} finally {
+				cancelled.set(true);
+				pool.shutdown();
+				awaitQuietly(pool);
+				if (channel.isOpen())
+					journal.checkpoint(channel, true);
+			}
+		}
+		return progress.transferred();
+	}
+
+	/** Waits for {@code pool} to drain, keeping but not acting on an interrupt. */
+	static void awaitQuietly(ExecutorService pool) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (pool.awaitTermination(1, TimeUnit.MINUTES))
+					break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	static void hashChannel(FileChannel channel, long from, long to, MessageDigest digest) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+		long position = from;
+		while (position < to) {
+			buffer.clear().limit((int) Math.min(buffer.capacity(), to - position));
+			int bytesRead = channel.read(buffer, position);
+			if (bytesRead < 0)
+				throw new EOFException("File ends at " + position + ", expected " + to + " bytes");
+			buffer.flip();
+			digest.update(buffer);
+			position += bytesRead;
+		}
+	}
+
+	/**
+	 * Cuts the missing ranges into pieces of roughly equal size so that every
+	 * connection has work, without going below {@link #MIN_RANGE_SIZE}.
+	 */
+	static List<long[]> splitRanges(List<long[]> missing, int connections) {
+		long total = 0;
+		for (long[] range : missing)
+			total += range[1] - range[0] + 1;
+
+		long target = Math.max(MIN_RANGE_SIZE, (total + connections - 1) / Math.max(1, connections));
+
+		List<long[]> pieces = new ArrayList<>();
+		for (long[] range : missing) {
+			for (long from = range[0]; from <= range[1]; from += target)
+				pieces.add(new long[] { from, Math.min(range[1], from + target - 1) });
+		}
+		return pieces;
+	}
+
+	static void fetchRange(
+			HttpClient client,
+			URI uri,
+			FileChannel channel,
+			long from,
+			long to,
+			Journal journal,
+			Progress progress,
+			MessageDigest digest,
+			int bufferSize,
+			AtomicBoolean cancelled) throws IOException, InterruptedException {
+
+		if (cancelled.get())
+			return;
+		HttpResponse<InputStream> response = client.send(
+				newRequest(uri, "bytes=" + from + "-" + to, journal.ifRange()),
+				HttpResponse.BodyHandlers.ofInputStream());
+
+		try (InputStream in = response.body()) {
+			String contentRange = response.headers().firstValue("Content-Range").orElse("");
+			if (response.statusCode() != 206 || !contentRange.startsWith("bytes " + from + "-")) {
+				throw new IOException("Range " + from + "-" + to + " rejected: HTTP " + response.statusCode());
+			}
+
+			byte[] buffer = new byte[bufferSize];
+			long position = from;
+			int bytesRead;
+
+			while ((bytesRead = in.read(buffer)) != -1) {
+				if (cancelled.get())
+					return;
+				if (position + bytesRead > to + 1)
+					throw new IOException("Range " + from + "-" + to + " overran its end");
+
+				if (digest != null)
+					digest.update(buffer, 0, bytesRead);
+				ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, bytesRead);
+				while (chunk.hasRemaining())
+					channel.write(chunk, position + chunk.position());
+
+				journal.add(position, position + bytesRead - 1);
+				journal.checkpoint(channel, false);
+				position += bytesRead;
+				progress.add(bytesRead);
+			}
+
+			if (position != to + 1)
+				throw new IOException("Range " + from + "-" + to + " ended early at byte " + position);
+		}
+	}
+
+	/**
+	 * Sidecar record of a partial download: the server validator it was started
+	 * against and the byte ranges (inclusive) already written to the {@code .part}
+	 * file. It is only ever saved after the data it describes has been forced to disk.
+	 */
+	static class Journal {
+
+		private static final long CHECKPOINT_INTERVAL_MS = 1000;
+
+		final Path file;
+		String etag;
+		String lastModified;
+		long length = -1;
+
+		private final TreeMap<Long, Long> done = new TreeMap<>();
+		private long checkpointedAt;
+		private final ReentrantLock saveLock = new ReentrantLock();
+
+		Journal(Path file) {
+			this.file = file;
+		}
+
+		synchronized void load() {
+			if (!Files.exists(file))
+				return;
+
+			Properties props = new Properties();
+			try (Reader in = Files.newBufferedReader(file)) {
+				props.load(in);
+				etag = props.getProperty("etag");
+				lastModified = props.getProperty("lastModified");
+				length = Long.parseLong(props.getProperty("length", "-1"));
+				for (String range : props.getProperty("done", "").split(",")) {
+					if (range.isBlank())
+						continue;
+					String[] bounds = range.split("-");
+					add(Long.parseLong(bounds[0]), Long.parseLong(bounds[1]));
+				}
+			} catch (IOException | RuntimeException e) {
+				System.err.println("Ignoring unreadable journal " + file + ": " + e.getMessage());
+				reset(null, null, -1);
+			}
+		}
+
+		/**
+		 * A journal is only trusted if the length matches and at least one validator
+		 * was recorded and still matches; otherwise the part file may mix two versions.
+		 */
+		synchronized boolean matches(String etag, String lastModified, long length) {
+			if (this.length != length || (this.etag == null && this.lastModified == null))
+				return false;
+			return Objects.equals(this.etag, etag) && Objects.equals(this.lastModified, lastModified);
+		}
+
+		synchronized void reset(String etag, String lastModified, long length) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.length = length;
+			done.clear();
+		}
+
+		/** Returns the validator to send as {@code If-Range}, or null if there is none. */
+		synchronized String ifRange() {
+			if (etag != null && !etag.startsWith("W/"))
+				return etag;
+			return lastModified;
+		}
+
+		synchronized void add(long from, long to) {
+			Map.Entry<Long, Long> before = done.floorEntry(from);
+			if (before != null && before.getValue() >= from - 1) {
+				from = before.getKey();
+				to = Math.max(to, before.getValue());
+			}
+			Map.Entry<Long, Long> after;
+			while ((after = done.ceilingEntry(from)) != null && after.getKey() <= to + 1) {
+				to = Math.max(to, after.getValue());
+				done.remove(after.getKey());
+			}
+			done.put(from, to);
+		}
+
+		synchronized List<long[]> missing() {
+			List<long[]> missing = new ArrayList<>();
+			long next = 0;
+			for (Map.Entry<Long, Long> range : done.entrySet()) {
+				if (range.getKey() > next)
+					missing.add(new long[] { next, range.getKey() - 1 });
+				next = Math.max(next, range.getValue() + 1);
+			}
+			if (next < length)
+				missing.add(new long[] { next, length - 1 });
+			return missing;
+		}
+
+		synchronized long remaining() {
+			long remaining = 0;
+			for (long[] range : missing())
+				remaining += range[1] - range[0] + 1;
+			return remaining;
+		}
+
+		/**
+		 * Forces the part file and saves the journal, at most once per interval unless
+		 * {@code force} is set. The snapshot is taken before forcing so it never claims
+		 * bytes that were not yet on disk. Saves are serialized on {@link #saveLock},
+		 * so two fetchers never share the temp file and an older snapshot cannot be
+		 * moved over a newer one; a periodic save that finds another in progress is
+		 * simply skipped.
+		 */
+		void checkpoint(FileChannel channel, boolean force) throws IOException {
+			if (force)
+				saveLock.lock();
+			else if (!saveLock.tryLock())
+				return;
+			try {
+				Properties snapshot;
+				synchronized (this) {
+					long now = System.currentTimeMillis();
+					if (!force && now - checkpointedAt < CHECKPOINT_INTERVAL_MS)
+						return;
+					checkpointedAt = now;
+					snapshot = toProperties();
+				}
+
+				channel.force(false);
+
+				Path tmp = siblingPath(file, ".tmp");
+				try (Writer out = Files.newBufferedWriter(tmp)) {
+					snapshot.store(out, "GDown partial download");
+				}
+				moveIntoPlace(tmp, file);
+			} finally {
+				saveLock.unlock();
+			}
+		}
+
+		private Properties toProperties() {
+			Properties props = new Properties();
+			if (etag != null)
+				props.setProperty("etag", etag);
+			if (lastModified != null)
+				props.setProperty("lastModified", lastModified);
+			props.setProperty("length", Long.toString(length));
+
+			StringJoiner ranges = new StringJoiner(",");
+			done.forEach((from, to) -> ranges.add(from + "-" + to));
+			props.setProperty("done", ranges.toString());
+			return props;
+		}
+	}
+
+	/**
+	 * Extracts a zip, tar, tar.gz, tar.bz2, tar.xz or tar.zst archive into
+	 * {@code targetDir}. Zip archives are driven by their central directory and
+	 * inflated in parallel; everything else is read front to back by
+	 * {@link #extractStream}.
+	 */
+	static int extractArchive(Path archive, Path targetDir, int workers) throws IOException {
+		if (isZip(archive))
+			return extractZip(archive, targetDir, workers);
+
+		try (InputStream in = Files.newInputStream(archive)) {
+			return extractStream(in, targetDir, workers);
+		}
+	}
+
+	static boolean isZip(Path archive) throws IOException {
+		byte[] magic = new byte[4];
+		try (InputStream in = Files.newInputStream(archive)) {
+			if (in.readNBytes(magic, 0, magic.length) < magic.length)
+				return false;
+		}
+		return magic[0] == 'P' && magic[1] == 'K'
+				&& ((magic[2] == 3 && magic[3] == 4) || (magic[2] == 5 && magic[3] == 6));
+	}
+
+	/**
+	 * Creates every directory up front, then inflates file entries on a bounded pool,
+	 * largest first. The entry streams read the shared channel positionally; their
+	 * data offsets are resolved while the central directory is loaded.
+	 */
+	static int extractZip(Path archive, Path targetDir, int workers) throws IOException {
+		try (ZipFile zip = ZipFile.builder().setPath(archive).get()) {
+			List<ZipArchiveEntry> files = new ArrayList<>();
+			Set<Path> dirs = new HashSet<>();
+
+			for (ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
+				Path path = entryPath(targetDir, entry.getName());
+				if (entry.isDirectory()) {
+					dirs.add(path);
+				} else {
+					if (!zip.canReadEntryData(entry))
+						throw new IOException("Unsupported zip entry: " + entry.getName());
+					dirs.add(path.getParent());
+					files.add(entry);
+				}
+			}
+
+			for (Path dir : dirs)
+				Files.createDirectories(dir);
+
+			files.sort(Comparator.comparingLong(ZipArchiveEntry::getSize).reversed());
+
+			try (ExtractPool pool = new ExtractPool(workers)) {
+				for (ZipArchiveEntry entry : files) {
+					Path path = entryPath(targetDir, entry.getName());
+					pool.submit(() -> {
+						try (InputStream in = zip.getInputStream(entry)) {
+							Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+						}
+					});
+				}
+			}
+			return files.size() + dirs.size();
+		}
+	}
+
+	/**
+	 * Extracts an archive read front to back, optionally compressed. Small entries are
+	 * read into memory and written on the pool while the next entry is decoded; large
+	 * ones are copied inline. {@code in} is not closed.
+	 */
+	static int extractStream(InputStream in, Path targetDir, int workers) throws IOException {
+		InputStream buffered = new BufferedInputStream(in);
+		try {
+			String compressor = CompressorStreamFactory.detect(buffered);
+			if (COMPRESSORS.contains(compressor)) {
+				buffered = new BufferedInputStream(
+						new CompressorStreamFactory(true).createCompressorInputStream(compressor, buffered));
+			}
+		} catch (CompressorException e) {
+			// not compressed
+		}
+
+		ArchiveInputStream<? extends ArchiveEntry> archive;
+		try {
+			archive = new ArchiveStreamFactory().createArchiveInputStream(buffered);
+		} catch (ArchiveException e) {
+			throw new IOException("not a supported archive", e);
+		}
+
+		int count = 0;
+		try (ExtractPool pool = new ExtractPool(workers)) {
+			ArchiveEntry entry;
+			while ((entry = archive.getNextEntry()) != null) {
+				if (!archive.canReadEntryData(entry))
+					throw new IOException("Unsupported archive entry: " + entry.getName());
+
+				Path path = entryPath(targetDir, entry.getName());
+				count++;
+
+				if (entry.isDirectory()) {
+					Files.createDirectories(path);
+					continue;
+				}
+				if (entry instanceof TarArchiveEntry tar && !tar.isFile()) {
+					// links and special files are not materialised
+					continue;
+				}
+
+				Files.createDirectories(path.getParent());
+
+				long size = entry.getSize();
+				if (size >= 0 && size <= BUFFERED_ENTRY_SIZE) {
+					byte[] content = archive.readNBytes((int) size);
+					pool.submit(() -> Files.write(path, content));
+				} else {
+					Files.copy(archive, path, StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Bounded pool for entry writes: at most {@code workers} tasks run and as many
+	 * again wait, so a fast reader cannot buffer an unbounded amount of entry data.
+	 * The first failure stops further work and is rethrown from {@link #close()}.
+	 */
+	static class ExtractPool implements AutoCloseable {
+
+		interface Task {
+			void run() throws IOException;
+		}
+
+		private final ExecutorService pool;
+		private final Semaphore slots;
+		private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+		ExtractPool(int workers) {
+			int size = Math.max(1, workers);
+			this.pool = Executors.newFixedThreadPool(size);
+			this.slots = new Semaphore(size * 2);
+		}
+
+		void submit(Task task) throws IOException {
+			rethrow();
+			slots.acquireUninterruptibly();
+			pool.execute(() -> {
+				try {
+					if (failure.get() == null)
+						task.run();
+				} catch (IOException e) {
+					failure.compareAndSet(null, e);
+				} catch (RuntimeException e) {
+					failure.compareAndSet(null, new IOException(e));
+				} finally {
+					slots.release();
+				}
+			});
+		}
+
+		@Override
+		public void close() throws IOException {
+			pool.shutdown();
+			try {
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+			} catch (InterruptedException e) {
+				pool.shutdownNow();
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Extraction interrupted");
+			}
+			rethrow();
+		}
+
+		private void rethrow() throws IOException {
+			IOException e = failure.get();
+			if (e != null)
+				throw e;
+		}
+	}
+
+	/** Resolves an archive entry name, refusing names that escape the target directory. */
+	static Path entryPath(Path targetDir, String name) throws IOException {
+		Path base = targetDir.toAbsolutePath().normalize();
+		Path path = base.resolve(name).normalize();
+		if (!path.startsWith(base))
+			throw new IOException("Archive entry outside target directory: " + name);
+		return path;
+	}
+
+}
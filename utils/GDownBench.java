@@ -0,0 +1,408 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//JAVA 21
+//SOURCES GDown.java
+//DEPS org.openjdk.jmh:jmh-core:1.37
+//DEPS org.openjdk.jmh:jmh-generator-annprocess:1.37
+
+package gdown.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * JMH suite for GDown's hot paths, run against an in-process {@link HttpServer}
+ * serving synthetic payloads. Results are written as JSON (default
+ * {@code gdown-bench.json}) together with the GC profiler's allocation rates, so
+ * runs from different versions can be compared directly.
+ *
+ * <pre>
+ * jbang GDownBench.java                          # full matrix, 1 MiB .. 2 GiB
+ * jbang GDownBench.java -p sizeMb=64 -rf json -rff out.json download
+ * </pre>
+ *
+ * JMH refuses benchmarks in the default package, so this class lives in
+ * {@code gdown.bench} and reaches the package-less {@code GDown} through
+ * {@link Target}'s reflective handles. The call overhead is noise next to the
+ * millisecond-scale operations being measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GDownBench {
+
+	private static final int BLOCK_SIZE = 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		if (cmd.getIncludes().isEmpty())
+			cmd.getIncludes().add(GDownBench.class.getSimpleName());
+
+		new Runner(new OptionsBuilder()
+			.parent(cmd)
+			.addProfiler(GCProfiler.class)
+			.resultFormat(cmd.getResultFormat().orElse(ResultFormatType.JSON))
+			.result(cmd.getResult().orElse("gdown-bench.json"))
+			.build()).run();
+	}
+
+	/** Serves {@code sizeMb} of a repeating random block, with byte-range support. */
+	@State(Scope.Benchmark)
+	public static class Server {
+
+		@Param({ "1", "64", "2048" })
+		public int sizeMb;
+
+		HttpServer server;
+		HttpClient client;
+		URI uri;
+		byte[] block;
+		Path dir;
+
+		@Setup(Level.Trial)
+		public void start() throws Exception {
+			block = new byte[BLOCK_SIZE];
+			new Random(42).nextBytes(block);
+
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			server.createContext("/uc", this::serve);
+			server.setExecutor(Executors.newCachedThreadPool());
+			server.start();
+
+			uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/uc?export=download");
+			GDown.setDownloadUrl(uri.toString());
+			client = GDown.newClient();
+			dir = Files.createTempDirectory("gdown-bench");
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() throws IOException {
+			server.stop(0);
+			deleteTree(dir);
+		}
+
+		long size() {
+			return (long) sizeMb * 1024 * 1024;
+		}
+
+		private void serve(HttpExchange exchange) throws IOException {
+			long from = 0;
+			long to = size() - 1;
+			String range = exchange.getRequestHeaders().getFirst("Range");
+
+			if (range != null && range.startsWith("bytes=")) {
+				String[] bounds = range.substring(6).split("-");
+				from = Long.parseLong(bounds[0]);
+				if (bounds.length > 1 && !bounds[1].isEmpty())
+					to = Math.min(to, Long.parseLong(bounds[1]));
+				exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + size());
+				exchange.getResponseHeaders().add("ETag", "\"bench-" + sizeMb + "\"");
+				exchange.sendResponseHeaders(206, to - from + 1);
+			} else {
+				exchange.sendResponseHeaders(200, size());
+			}
+
+			try (OutputStream out = exchange.getResponseBody()) {
+				for (long position = from; position <= to;) {
+					int offset = (int) (position % BLOCK_SIZE);
+					int length = (int) Math.min(BLOCK_SIZE - offset, to - position + 1);
+					out.write(block, offset, length);
+					position += length;
+				}
+			}
+		}
+	}
+
+	/** Output location that is wiped after every invocation. */
+	@State(Scope.Thread)
+	public static class Target {
+
+		Path dir;
+
+		@Setup(Level.Invocation)
+		public void create() throws IOException {
+			dir = Files.createTempDirectory("gdown-bench-out");
+		}
+
+		@TearDown(Level.Invocation)
+		public void delete() throws IOException {
+			deleteTree(dir);
+		}
+	}
+
+	// ================= saveResponseContent =================
+
+	@State(Scope.Thread)
+	public static class CopySettings {
+
+		@Param({ "32", "256", "1024" })
+		public int bufferKb;
+
+		@Param({ "none", "sha256" })
+		public String digest;
+	}
+
+	@Benchmark
+	public long saveResponseContent(Server server, CopySettings settings, Target target) throws Exception {
+		return GDown.saveResponseContent(
+				new PatternInputStream(server.block, server.size()),
+				target.dir.resolve("payload.bin"),
+				"sha256".equals(settings.digest) ? MessageDigest.getInstance("SHA-256") : null,
+				settings.bufferKb * 1024);
+	}
+
+	// ================= full download flow =================
+
+	@State(Scope.Thread)
+	public static class DownloadSettings {
+
+		@Param({ "1", "4" })
+		public int connections;
+
+		@Param({ "256" })
+		public int bufferKb;
+	}
+
+	@Benchmark
+	public long downloadFileFromGoogleDrive(Server server, DownloadSettings settings, Target target)
+			throws Exception {
+		return GDown.downloadFileFromGoogleDrive(
+				server.client, target.dir.resolve("payload.bin"), settings.connections, settings.bufferKb * 1024);
+	}
+
+	// ================= extraction =================
+
+	/**
+	 * Archives built once per trial: {@code many-small} is 10,000 entries of 4 KiB,
+	 * {@code few-large} is 4 entries of 64 MiB.
+	 */
+	@State(Scope.Benchmark)
+	public static class Archive {
+
+		@Param({ "many-small", "few-large" })
+		public String shape;
+
+		@Param({ "zip", "tar.gz" })
+		public String format;
+
+		@Param({ "1", "8" })
+		public int workers;
+
+		Path dir;
+		Path archive;
+
+		@Setup(Level.Trial)
+		public void build() throws IOException {
+			dir = Files.createTempDirectory("gdown-bench-archive");
+			archive = dir.resolve("archive." + format);
+
+			int entries = "many-small".equals(shape) ? 10_000 : 4;
+			int entrySize = "many-small".equals(shape) ? 4 * 1024 : 64 * 1024 * 1024;
+
+			byte[] block = new byte[BLOCK_SIZE];
+			new Random(7).nextBytes(block);
+
+			try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(archive))) {
+				if ("zip".equals(format)) {
+					try (ZipOutputStream zip = new ZipOutputStream(file)) {
+						for (int i = 0; i < entries; i++) {
+							zip.putNextEntry(new ZipEntry("d" + (i % 100) + "/e" + i + ".bin"));
+							writePattern(zip, block, entrySize);
+							zip.closeEntry();
+						}
+					}
+				} else {
+					try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(file))) {
+						for (int i = 0; i < entries; i++) {
+							TarArchiveEntry entry = new TarArchiveEntry("d" + (i % 100) + "/e" + i + ".bin");
+							entry.setSize(entrySize);
+							tar.putArchiveEntry(entry);
+							writePattern(tar, block, entrySize);
+							tar.closeArchiveEntry();
+						}
+					}
+				}
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void delete() throws IOException {
+			deleteTree(dir);
+		}
+	}
+
+	@Benchmark
+	public int extractArchive(Archive archive, Target target) throws Exception {
+		return GDown.extractArchive(archive.archive, target.dir, archive.workers);
+	}
+
+	// ================= helpers =================
+
+	/** Reflective view of the package-private entry points in {@code GDown}. */
+	static final class GDown {
+
+		private static final Class<?> CLASS = load("GDown");
+		private static final Class<?> OPTIONS = load("GDown$Options");
+		private static final Class<?> PROGRESS = load("GDown$Progress");
+
+		private static final Field DOWNLOAD_URL = field(CLASS, "downloadUrl");
+		private static final Method NEW_CLIENT = method("newClient");
+		private static final Method SAVE = method("saveResponseContent",
+				InputStream.class, Path.class, PROGRESS, MessageDigest.class, int.class);
+		private static final Method DOWNLOAD = method("downloadFileFromGoogleDrive",
+				HttpClient.class, String.class, Path.class, OPTIONS);
+		private static final Method EXTRACT = method("extractArchive", Path.class, Path.class, int.class);
+
+		private GDown() {
+		}
+
+		static void setDownloadUrl(String url) throws IllegalAccessException {
+			DOWNLOAD_URL.set(null, url);
+		}
+
+		static HttpClient newClient() throws Exception {
+			return (HttpClient) invoke(NEW_CLIENT);
+		}
+
+		static long saveResponseContent(InputStream input, Path destination, MessageDigest digest, int bufferSize)
+				throws Exception {
+			Object opts = options();
+			Constructor<?> progress = PROGRESS.getDeclaredConstructor(OPTIONS, String.class);
+			progress.setAccessible(true);
+			return (long) invoke(SAVE, input, destination, progress.newInstance(opts, "bench"), digest, bufferSize);
+		}
+
+		static long downloadFileFromGoogleDrive(HttpClient client, Path destPath, int connections, int bufferSize)
+				throws Exception {
+			Object opts = options();
+			field(OPTIONS, "quiet").setBoolean(opts, true);
+			field(OPTIONS, "overwrite").setBoolean(opts, true);
+			field(OPTIONS, "connections").setInt(opts, connections);
+			field(OPTIONS, "bufferSize").setInt(opts, bufferSize);
+			return (long) invoke(DOWNLOAD, client, "bench", destPath, opts);
+		}
+
+		static int extractArchive(Path archive, Path targetDir, int workers) throws Exception {
+			return (int) invoke(EXTRACT, archive, targetDir, workers);
+		}
+
+		private static Object options() throws ReflectiveOperationException {
+			Constructor<?> constructor = OPTIONS.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return constructor.newInstance();
+		}
+
+		private static Object invoke(Method method, Object... args) throws Exception {
+			try {
+				return method.invoke(null, args);
+			} catch (InvocationTargetException e) {
+				if (e.getCause() instanceof Exception cause)
+					throw cause;
+				throw e;
+			}
+		}
+
+		private static Class<?> load(String name) {
+			try {
+				return Class.forName(name);
+			} catch (ClassNotFoundException e) {
+				throw new IllegalStateException("GDown.java is not on the classpath", e);
+			}
+		}
+
+		private static Field field(Class<?> owner, String name) {
+			try {
+				Field field = owner.getDeclaredField(name);
+				field.setAccessible(true);
+				return field;
+			} catch (NoSuchFieldException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private static Method method(String name, Class<?>... types) {
+			try {
+				Method method = CLASS.getDeclaredMethod(name, types);
+				method.setAccessible(true);
+				return method;
+			} catch (NoSuchMethodException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	static void writePattern(OutputStream out, byte[] block, long size) throws IOException {
+		for (long written = 0; written < size;) {
+			int length = (int) Math.min(block.length, size - written);
+			out.write(block, 0, length);
+			written += length;
+		}
+	}
+
+	static void deleteTree(Path dir) throws IOException {
+		if (dir == null || !Files.exists(dir))
+			return;
+		try (Stream<Path> paths = Files.walk(dir)) {
+			for (Path path : paths.sorted(Comparator.reverseOrder()).toList())
+				Files.deleteIfExists(path);
+		}
+	}
+
+	/** Endless-looking body without holding the payload in memory. */
+	static class PatternInputStream extends InputStream {
+
+		private final byte[] block;
+		private final long size;
+		private long position;
+
+		PatternInputStream(byte[] block, long size) {
+			this.block = block;
+			this.size = size;
+		}
+
+		@Override
+		public int read() {
+			if (position >= size)
+				return -1;
+			return block[(int) (position++ % block.length)] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position >= size)
+				return -1;
+			int offset = (int) (position % block.length);
+			int n = (int) Math.min(Math.min(len, block.length - offset), size - position);
+			System.arraycopy(block, offset, b, off, n);
+			position += n;
+			return n;
+		}
+	}
+}